@@ -1,14 +1,24 @@
 import java.io.*;
+import java.net.Inet4Address;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 public class InelTCP {
     public static void main(String[] args) throws Exception {
         if (args.length < 3) {
-            System.out.println("Usage: java InelTCP <process_port> <next_IP> <next_port>");
+            System.out.println("Usage: java InelTCP <process_port> <next_IP> <next_port> [--binary] [--window N] [--deadline ms] [--bench N [--size bytes] [--rate msgs/s]]");
 
             return;
         }
@@ -17,15 +27,86 @@ public class InelTCP {
         String nextIP = args[1];
         int nextPort = Integer.parseInt(args[2]);
 
-        new InelTCP().run(processPort, nextIP, nextPort);
+        InelTCP node = new InelTCP();
+        for (int i = 3; i < args.length; i++) {
+            switch (args[i]) {
+                case "--binary":
+                    node.binary = true;
+                    break;
+                case "--window":
+                    node.window = Integer.parseInt(args[++i]);
+                    break;
+                case "--deadline":
+                    node.deadlineMs = Integer.parseInt(args[++i]);
+                    break;
+                case "--bench":
+                    node.binary = true;
+                    node.benchCount = Integer.parseInt(args[++i]);
+                    break;
+                case "--size":
+                    node.benchSize = Integer.parseInt(args[++i]);
+                    break;
+                case "--rate":
+                    node.benchRate = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    System.out.println("Unknown option: " + args[i]);
+                    return;
+            }
+        }
+
+        if (node.window < 1 || node.window >= RingOutLink.DEPTH) {
+            System.out.println("Window must be between 1 and " + (RingOutLink.DEPTH - 1));
+            return;
+        }
+        if (node.deadlineMs < 100) {
+            System.out.println("Deadline must be at least 100 ms");
+            return;
+        }
+        if (node.benchCount > 0 && (node.benchSize < BENCH_STAMP_LEN || node.benchSize > RingFrame.MAX_PAYLOAD)) {
+            System.out.println("Bench size must be between " + BENCH_STAMP_LEN + " and " + RingFrame.MAX_PAYLOAD + " bytes");
+            return;
+        }
+
+        node.run(processPort, nextIP, nextPort);
     }
 
+    // --binary: length-prefixed RingFrame packets instead of JSON lines
+    private boolean binary;
+
+    // --window: frames this node may have circulating at once; kept below the OUT queue
+    // depth so the ring can never fill every queue and deadlock
+    private int window = 64;
+
+    // --bench: this node injects benchCount stamped frames and times their round trip
+    private static final int BENCH_STAMP_LEN = 8;
+    private int benchCount;
+    private int benchSize = 64;
+    private int benchRate;  // msgs/s, 0 = as fast as the ring accepts them
+    private final LatencyHistogram benchRtt = new LatencyHistogram();
+    private long benchStart;
+    private final AtomicLong benchReceived = new AtomicLong();
+
+    // --deadline: an OUT link that stays silent this long is bypassed
+    private int deadlineMs = 1500;
+
+    // Binary mode state, shared by every IN link the node accepts over its lifetime
+    private int selfIp;
+    private int selfPort;
+    private RingOutLink link;
+    private RingWindow inFlight;
+    private final Set<Long> deadOrigins = ConcurrentHashMap.newKeySet();
+    private final CountDownLatch stop = new CountDownLatch(1);
+
     private void run(int processPort, String nextIP, int nextPort) throws Exception {
-        System.out.println("Starting process node on port " + processPort);
+        System.out.println("Starting process node on port " + processPort + (binary ? " (binary frames)" : ""));
         System.out.println("Next node is " + nextIP + ":" + nextPort);
 
-        try (ServerSocket server = new ServerSocket(processPort)) {
+        // Sockets are opened through channels so the binary mode can move bytes channel to channel
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            ServerSocket server = serverChannel.socket();
             server.setReuseAddress(true);
+            server.bind(new InetSocketAddress(processPort));
 
             Socket outSocket = connectWithRetry(nextIP, nextPort);
 
@@ -33,134 +114,401 @@ public class InelTCP {
             Socket inSocket = server.accept();
             System.out.println("IN connection established on " + inSocket.getRemoteSocketAddress());
 
-            try (
-                    BufferedReader in = new BufferedReader(new InputStreamReader(inSocket.getInputStream(), "UTF-8"));
-                    PrintWriter out = new PrintWriter(new OutputStreamWriter(outSocket.getOutputStream(), "UTF-8"), true);
-                    BufferedReader console = new BufferedReader(new InputStreamReader(System.in))
-            ){
-                CountDownLatch done = new CountDownLatch(2);
+            try {
+                if (binary) {
+                    runBinary(serverChannel, inSocket.getChannel(), outSocket.getChannel(),
+                            new InetSocketAddress(nextIP, nextPort));
+                } else {
+                    runText(inSocket, outSocket);
+                }
+            }
+            finally {
+                try {
+                    inSocket.close();
+                } catch (IOException e) {
+                    System.out.println("Error closing IN socket: " + e.getMessage());
+                }
+                try {
+                    outSocket.close();
+                } catch (IOException e) {
+                    System.out.println("Error closing OUT socket: " + e.getMessage());
+                }
+
+                System.out.println("Process on port " + processPort + " stopped.");
+            }
+        }
+        catch (IOException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+    }
+
+    private void runText(Socket inSocket, Socket outSocket) throws IOException, InterruptedException {
+        try (
+                BufferedReader in = new BufferedReader(new InputStreamReader(inSocket.getInputStream(), "UTF-8"));
+                PrintWriter out = new PrintWriter(new OutputStreamWriter(outSocket.getOutputStream(), "UTF-8"), true);
+                BufferedReader console = new BufferedReader(new InputStreamReader(System.in))
+        ){
+            CountDownLatch done = new CountDownLatch(2);
 
-                // Thread tx
-                Thread tx = new Thread(() -> {
-                    try {
-                        while (true) {
-                            String line = console.readLine();
+            // Thread tx
+            Thread tx = new Thread(() -> {
+                try {
+                    while (true) {
+                        String line = console.readLine();
 
-                            String ip = inSocket.getLocalAddress().getHostAddress();
-                            int port = inSocket.getLocalPort();
+                        String ip = inSocket.getLocalAddress().getHostAddress();
+                        int port = inSocket.getLocalPort();
 
-                            String jsonPacket = String.format("{\"ip\":\"%s\",\"port\":%d,\"message\":\"%s\"}",
-                                    ip, port, line);
+                        String jsonPacket = String.format("{\"ip\":\"%s\",\"port\":%d,\"message\":\"%s\"}",
+                                ip, port, line);
 
-                            out.println(jsonPacket);
-                        }
-                    } catch (IOException e) {
-                        System.out.println("Error: " + e.getMessage());
-                    } finally {
-                        done.countDown();
+                        out.println(jsonPacket);
                     }
-                });
-
-                // Thread rx
-                Thread rx = new Thread(() -> {
-                    try {
-                        String line;
-                        while ((line = in.readLine()) != null) {
-                            line = line.trim();
-                            if (line.isEmpty()) continue;
-
-                            if (line.startsWith("{") && line.endsWith("}")) {
-                                try {
-                                    String body = line.substring(1, line.length() - 1).trim();
-                                    String[] parts = body.split(",\\s*");
-                                    String ip = "", message = "";
-                                    int port = -1;
-
-                                    for (String part : parts) {
-                                        String[] kv = part.split(":", 2);
-                                        if (kv.length != 2) continue;
-                                        String key = kv[0].replace("\"", "").trim();
-                                        String value = kv[1].replace("\"", "").trim();
-
-                                        switch (key) {
-                                            case "ip":
-                                                ip = value;
-                                                break;
-                                            case "port":
-                                                port = Integer.parseInt(value);
-                                                break;
-                                            case "message":
-                                                message = value;
-                                                break;
-                                        }
-                                    }
+                } catch (IOException e) {
+                    System.out.println("Error: " + e.getMessage());
+                } finally {
+                    done.countDown();
+                }
+            });
 
-                                    System.out.printf("[From %s:%d] %s%n", ip, port, message);
+            // Thread rx
+            Thread rx = new Thread(() -> {
+                try {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        line = line.trim();
+                        if (line.isEmpty()) continue;
 
-                                    if (ip.equals(inSocket.getLocalAddress().getHostAddress()) && port == inSocket.getLocalPort()) {
-                                        System.out.println("Message received back!");
-                                    } else {
-                                        out.println(line);
-                                    }
+                        if (line.startsWith("{") && line.endsWith("}")) {
+                            try {
+                                String body = line.substring(1, line.length() - 1).trim();
+                                String[] parts = body.split(",\\s*");
+                                String ip = "", message = "";
+                                int port = -1;
 
-                                    if ("exit".equalsIgnoreCase(message)) {
-                                        break;
+                                for (String part : parts) {
+                                    String[] kv = part.split(":", 2);
+                                    if (kv.length != 2) continue;
+                                    String key = kv[0].replace("\"", "").trim();
+                                    String value = kv[1].replace("\"", "").trim();
+
+                                    switch (key) {
+                                        case "ip":
+                                            ip = value;
+                                            break;
+                                        case "port":
+                                            port = Integer.parseInt(value);
+                                            break;
+                                        case "message":
+                                            message = value;
+                                            break;
                                     }
-                                } catch (Exception parseErr) {
-                                    System.out.println("Invalid JSON packet: " + line);
                                 }
-                            } else {
-                                System.out.println("Received (raw): " + line);
-                                if ("exit".equalsIgnoreCase(line)) {
+
+                                System.out.printf("[From %s:%d] %s%n", ip, port, message);
+
+                                if (ip.equals(inSocket.getLocalAddress().getHostAddress()) && port == inSocket.getLocalPort()) {
+                                    System.out.println("Message received back!");
+                                } else {
+                                    out.println(line);
+                                }
+
+                                if ("exit".equalsIgnoreCase(message)) {
                                     break;
                                 }
+                            } catch (Exception parseErr) {
+                                System.out.println("Invalid JSON packet: " + line);
+                            }
+                        } else {
+                            System.out.println("Received (raw): " + line);
+                            if ("exit".equalsIgnoreCase(line)) {
+                                break;
                             }
                         }
-                    } catch (IOException e) {
-                        System.out.println("Error: " + e.getMessage());
-                    } finally {
-                        done.countDown();
                     }
-                });
+                } catch (IOException e) {
+                    System.out.println("Error: " + e.getMessage());
+                } finally {
+                    done.countDown();
+                }
+            });
+
+            tx.setDaemon(true);
+            rx.setDaemon(true);
+
+            tx.start();
+            rx.start();
+
+            done.await();
+        }
+    }
+
+    private void runBinary(ServerSocketChannel server, SocketChannel firstIn, SocketChannel out,
+                           InetSocketAddress successor) throws InterruptedException, IOException {
+        // Origin identity is fixed for the lifetime of the node
+        selfIp = RingFrame.ipv4(firstIn.socket().getLocalAddress());
+        selfPort = firstIn.socket().getLocalPort();
+        // Frames carry addresses as 4 bytes, so the ring needs an IPv4 successor; fail here, not on the first heal
+        if (!(successor.getAddress() instanceof Inet4Address)) {
+            throw new IllegalArgumentException("Binary ring needs an IPv4 successor, got " + successor.getAddress());
+        }
+
+        // The OUT link batches frames itself, Nagle would only add delay on top
+        out.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        inFlight = new RingWindow(window);
+        link = new RingOutLink(out, successor, deadlineMs, this::onHeal);
+        link.start();
+
+        startInbound(firstIn);
+        Thread acceptor = new Thread(() -> acceptLoop(server), "Acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
 
-                tx.setDaemon(true);
-                rx.setDaemon(true);
+        BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
 
-                tx.start();
-                rx.start();
+        // Thread tx
+        Thread tx = benchCount > 0 ? new Thread(this::benchTx) : new Thread(() -> {
+            long seq = 0;
+            try {
+                String line;
+                while ((line = console.readLine()) != null) {
+                    byte[] payload = line.getBytes(StandardCharsets.UTF_8);
+                    boolean exit = "exit".equalsIgnoreCase(line);
+
+                    ByteBuffer frame = ByteBuffer.allocate(RingFrame.HEADER_LEN + payload.length);
+                    frame.put(RingFrame.HEADER_LEN, payload);
+                    RingFrame.putHeader(frame, payload.length, exit ? RingFrame.FLAG_EXIT : 0, selfIp, selfPort, ++seq);
+
+                    inFlight.acquire(seq);
+                    inFlight.track(seq, frame);
+                    if (exit) link.stopHealing();
+                    link.send(frame);
+                }
+            } catch (IOException e) {
+                System.out.println("Error: " + e.getMessage());
+            } catch (InterruptedException ignored) {}
+        });
+        tx.setDaemon(true);
+        tx.start();
+
+        // The node lives until an exit frame passes or the bench is done; a closed
+        // console only stops tx and a dead predecessor is replaced by a new IN link
+        stop.await();
+        link.close();
+    }
 
-                done.await();
+    private void acceptLoop(ServerSocketChannel server) {
+        try {
+            while (true) {
+                SocketChannel in = server.accept();
+                System.out.println("IN connection established on " + in.getRemoteAddress());
+                startInbound(in);
             }
-            finally {
-                try {
-                    inSocket.close();
-                } catch (IOException e) {
-                    System.out.println("Error closing IN socket: " + e.getMessage());
+        } catch (IOException e) {
+            if (stop.getCount() > 0) System.out.println("Error: " + e.getMessage());
+        }
+    }
+
+    private void startInbound(SocketChannel in) {
+        // Thread rx
+        Thread rx = new Thread(() -> rxLoop(in));
+        // Thread advert: tells the predecessor who comes after us, which is also its heartbeat
+        Thread advert = new Thread(() -> advertLoop(in));
+
+        rx.setDaemon(true);
+        advert.setDaemon(true);
+
+        rx.start();
+        advert.start();
+    }
+
+    // Only the header is inspected, foreign frames are queued for OUT untouched.
+    // Taking a pooled buffer blocks while OUT is backed up, so IN stops being read.
+    private void rxLoop(SocketChannel in) {
+        ByteBuffer home = ByteBuffer.allocateDirect(Math.max(RingOutLink.POOLED_FRAME, benchSize));
+        try {
+            while (true) {
+                ByteBuffer frame = link.acquire();
+                if (!RingFrame.readHeader(in, frame)) {
+                    link.release(frame);
+                    System.out.println("IN link closed by " + in.socket().getRemoteSocketAddress());
+                    break;
+                }
+                int len = frame.getInt(RingFrame.LEN);
+                boolean exit = RingFrame.hasFlag(frame, RingFrame.FLAG_EXIT);
+                boolean bench = RingFrame.hasFlag(frame, RingFrame.FLAG_BENCH);
+                boolean heal = RingFrame.hasFlag(frame, RingFrame.FLAG_HEAL);
+                int originIp = frame.getInt(RingFrame.ORIGIN_IP);
+                int originPort = frame.getInt(RingFrame.ORIGIN_PORT);
+
+                if (RingFrame.isFrom(frame, selfIp, selfPort)) {
+                    long seq = frame.getLong(RingFrame.SEQ);
+                    int hops = RingFrame.hops(frame) + 1;
+                    link.release(frame);
+
+                    if (heal) {
+                        RingFrame.skip(in, len, home);
+                        continue;
+                    }
+                    // Replays can bring a frame home twice, only the first arrival counts
+                    boolean first = inFlight.complete(seq);
+
+                    if (bench) {
+                        home.clear().limit(len);
+                        RingFrame.readFully(in, home);
+                        if (!first) continue;
+                        benchRtt.record(System.nanoTime() - home.getLong(0));
+
+                        if (benchReceived.incrementAndGet() == benchCount) {
+                            printBenchReport(System.nanoTime() - benchStart);
+                            stop.countDown();
+                            break;
+                        }
+                    } else {
+                        String message = new String(RingFrame.readPayload(in, len), StandardCharsets.UTF_8);
+                        if (!first) continue;
+                        System.out.printf("Message received back! seq=%d hops=%d: %s%n", seq, hops, message);
+
+                        if (exit) {
+                            stop.countDown();
+                            break;
+                        }
+                    }
+                    continue;
+                }
+
+                if (!deadOrigins.isEmpty() && deadOrigins.contains(RingFrame.originKey(originIp, originPort))) {
+                    // Its origin is gone, nobody would ever take it off the ring
+                    link.release(frame);
+                    RingFrame.skip(in, len, home);
+                    continue;
                 }
+
+                if (!bench && !heal) {
+                    System.out.printf("[From %s:%d] seq=%d, %d bytes forwarded%n",
+                            RingFrame.ipString(originIp), originPort, frame.getLong(RingFrame.SEQ), len);
+                }
+
+                frame = link.ensureCapacity(frame, RingFrame.HEADER_LEN + len);
+                frame.limit(RingFrame.HEADER_LEN + len).position(RingFrame.HEADER_LEN);
                 try {
-                    outSocket.close();
+                    RingFrame.readFully(in, frame);
                 } catch (IOException e) {
-                    System.out.println("Error closing OUT socket: " + e.getMessage());
+                    // hand the buffer back, or its share of the pool or byte budget is gone for good
+                    link.release(frame);
+                    throw e;
                 }
+                frame.position(0);
+                RingFrame.incrementHops(frame);
 
-                System.out.println("Process on port " + processPort + " stopped.");
+                if (heal) {
+                    int deadIp = frame.getInt(RingFrame.HEADER_LEN);
+                    int deadPort = frame.getInt(RingFrame.HEADER_LEN + 4);
+                    deadOrigins.add(RingFrame.originKey(deadIp, deadPort));
+                    System.out.printf("[HEAL] %s:%d bypassed %s:%d, replaying window%n",
+                            RingFrame.ipString(originIp), originPort, RingFrame.ipString(deadIp), deadPort);
+                }
+                if (exit) {
+                    link.stopHealing();
+                }
+
+                link.send(frame);
+
+                if (heal) {
+                    inFlight.replay(link);
+                }
+                if (exit) {
+                    stop.countDown();
+                    break;
+                }
             }
+        } catch (IOException e) {
+            if (stop.getCount() > 0) System.out.println("IN link error: " + e.getMessage());
+        } catch (InterruptedException ignored) {}
+    }
+
+    private void advertLoop(SocketChannel in) {
+        ByteBuffer advert = ByteBuffer.allocate(RingFrame.ADVERT_LEN);
+        try {
+            while (in.isOpen()) {
+                InetSocketAddress next = link.successor();
+                advert.clear();
+                advert.putInt(0, RingFrame.ipv4(next.getAddress())).putInt(4, next.getPort());
+                RingFrame.writeFully(in, advert);
+                if (stop.await(deadlineMs / 4, TimeUnit.MILLISECONDS)) break;
+            }
+        } catch (IOException | InterruptedException ignored) {
+            // rx reports the broken IN link
         }
-        catch (IOException e) {
-            System.out.println("Error: " + e.getMessage());
+    }
+
+    /** Runs on the OUT monitor once it reconnected; frames lost with the dead node are replayed by their origins. */
+    private void onHeal(RingOutLink link, InetSocketAddress dead, InetSocketAddress now) throws InterruptedException {
+        if (!dead.equals(now)) {
+            int deadIp = RingFrame.ipv4(dead.getAddress());
+            deadOrigins.add(RingFrame.originKey(deadIp, dead.getPort()));
+
+            ByteBuffer notice = ByteBuffer.allocate(RingFrame.HEADER_LEN + 8);
+            notice.putInt(RingFrame.HEADER_LEN, deadIp).putInt(RingFrame.HEADER_LEN + 4, dead.getPort());
+            RingFrame.putHeader(notice, 8, RingFrame.FLAG_HEAL, selfIp, selfPort, 0);
+            link.send(notice);
         }
+        int replayed = inFlight.replay(link);
+        System.out.printf("[HEAL] replayed %d frames of our own window%n", replayed);
+    }
+
+    private void benchTx() {
+        System.out.printf("Bench: %d frames of %d bytes, rate %s, window %d%n",
+                benchCount, benchSize, benchRate > 0 ? benchRate + " msgs/s" : "unpaced", window);
+
+        long intervalNs = benchRate > 0 ? TimeUnit.SECONDS.toNanos(1) / benchRate : 0;
+
+        benchStart = System.nanoTime();
+        try {
+            for (int i = 1; i <= benchCount; i++) {
+                inFlight.acquire(i);
+
+                long stamp = System.nanoTime();
+                if (intervalNs > 0) {
+                    // Stamp the scheduled send time, so a stalled ring shows up as latency instead of a slower rate
+                    long due = benchStart + (i - 1) * intervalNs;
+                    if (due > stamp) LockSupport.parkNanos(due - stamp);
+                    stamp = due;
+                }
+
+                ByteBuffer frame = link.ensureCapacity(link.acquire(), RingFrame.HEADER_LEN + benchSize);
+                RingFrame.putHeader(frame, benchSize, RingFrame.FLAG_BENCH, selfIp, selfPort, i);
+                frame.putLong(RingFrame.HEADER_LEN, stamp);
+                inFlight.track(i, frame);
+                link.send(frame);
+            }
+        } catch (InterruptedException ignored) {}
+    }
+
+    private void printBenchReport(long elapsedNs) {
+        LatencyHistogram h = benchRtt;
+        System.out.printf("==> %d frames of %d bytes around the ring in %.1f ms (%.0f msgs/s, %.1f frames per write)%n",
+                h.count(), benchSize, elapsedNs / 1e6, h.count() / (elapsedNs / 1e9),
+                link.frames() / (double) Math.max(1, link.writes()));
+        System.out.printf("    RTT us: min=%.1f  p50=%.1f  p99=%.1f  p999=%.1f  max=%.1f  mean=%.1f%n",
+                h.min() / 1e3, h.percentile(50) / 1e3, h.percentile(99) / 1e3,
+                h.percentile(99.9) / 1e3, h.max() / 1e3, h.mean() / 1e3);
     }
 
     private Socket connectWithRetry(String host, int port) throws InterruptedException {
         int tries = 0;
         while (true) {
+            Socket s = null;
             try {
-                Socket s = new Socket();
+                s = SocketChannel.open().socket();
                 s.setReuseAddress(true);
                 s.connect(new InetSocketAddress(host, port), 700);
                 System.out.println("OUT connection established on " + host + ":" + port);
                 return s;
             } catch (IOException e) {
+                if (s != null) {
+                    try { s.close(); } catch (IOException ignored) {}
+                }
                 tries++;
                 long backoffMs = Math.min(2000, 150L * (1L << Math.min(tries, 4)));
                 System.out.printf("Can't connect to %s:%d (%d). Retrying in %d ms...%n",
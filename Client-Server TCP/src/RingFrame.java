@@ -0,0 +1,171 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Binary ring frame: a fixed 24-byte header followed by an opaque payload.
+ *
+ *   0  int   payload length
+ *   4  short flags
+ *   6  short hops
+ *   8  int   origin IPv4
+ *  12  int   origin port
+ *  16  long  origin sequence
+ *
+ * A hop decides whether to forward by looking only at the header; the payload
+ * is moved from the IN channel to the OUT channel as raw bytes, never decoded.
+ */
+final class RingFrame {
+    static final int HEADER_LEN = 24;
+    static final int MAX_PAYLOAD = 16 * 1024 * 1024;
+    static final int CHUNK = 64 * 1024;
+
+    static final int LEN = 0;
+    static final int FLAGS = 4;
+    static final int HOPS = 6;
+    static final int ORIGIN_IP = 8;
+    static final int ORIGIN_PORT = 12;
+    static final int SEQ = 16;
+
+    static final short FLAG_EXIT = 1;
+    // Benchmark traffic: payload starts with the origin's nanoTime stamp, hops forward it silently
+    static final short FLAG_BENCH = 2;
+    // Sent around by a node that bypassed a dead successor; payload is the dead node's IPv4 + port
+    static final short FLAG_HEAL = 4;
+
+    // Upstream direction: every node tells its predecessor who its own successor is, as
+    // IPv4 + port, over the same connection. The adverts double as a liveness signal.
+    static final int ADVERT_LEN = 8;
+
+    private RingFrame() {}
+
+    static int ipv4(InetAddress addr) {
+        if (!(addr instanceof Inet4Address)) {
+            throw new IllegalArgumentException("Binary frames need an IPv4 address, got " + addr);
+        }
+        byte[] b = addr.getAddress();
+        return ((b[0] & 0xFF) << 24) | ((b[1] & 0xFF) << 16) | ((b[2] & 0xFF) << 8) | (b[3] & 0xFF);
+    }
+
+    static InetSocketAddress address(int ip, int port) throws UnknownHostException {
+        byte[] b = {(byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip};
+        return new InetSocketAddress(InetAddress.getByAddress(b), port);
+    }
+
+    /** Origin ip and port packed into one key. */
+    static long originKey(int ip, int port) {
+        return ((long) ip << 32) | (port & 0xFFFFFFFFL);
+    }
+
+    static String ipString(int ip) {
+        return ((ip >>> 24) & 0xFF) + "." + ((ip >>> 16) & 0xFF) + "." + ((ip >>> 8) & 0xFF) + "." + (ip & 0xFF);
+    }
+
+    /** Writes a header at the start of {@code f} and frames it as HEADER_LEN + len bytes. */
+    static void putHeader(ByteBuffer f, int len, short flags, int originIp, int originPort, long seq) {
+        f.putInt(LEN, len)
+                .putShort(FLAGS, flags)
+                .putShort(HOPS, (short) 0)
+                .putInt(ORIGIN_IP, originIp)
+                .putInt(ORIGIN_PORT, originPort)
+                .putLong(SEQ, seq);
+        f.limit(HEADER_LEN + len).position(0);
+    }
+
+    static boolean isFrom(ByteBuffer h, int ip, int port) {
+        return h.getInt(ORIGIN_IP) == ip && h.getInt(ORIGIN_PORT) == port;
+    }
+
+    static boolean hasFlag(ByteBuffer h, short flag) {
+        return (h.getShort(FLAGS) & flag) != 0;
+    }
+
+    static int hops(ByteBuffer h) {
+        return h.getShort(HOPS) & 0xFFFF;
+    }
+
+    static void incrementHops(ByteBuffer h) {
+        h.putShort(HOPS, (short) (hops(h) + 1));
+    }
+
+    /**
+     * Reads one header into {@code h}. Returns false on a clean end of stream
+     * between frames, throws if the stream ends mid-frame or the length is bogus.
+     */
+    static boolean readHeader(ReadableByteChannel in, ByteBuffer h) throws IOException {
+        h.clear().limit(HEADER_LEN);
+        while (h.hasRemaining()) {
+            if (in.read(h) < 0) {
+                if (h.position() == 0) return false;
+                throw new EOFException("Stream ended inside a frame header");
+            }
+        }
+        int len = h.getInt(LEN);
+        if (len < 0 || len > MAX_PAYLOAD) {
+            throw new IOException("Corrupt frame, payload length " + len);
+        }
+        h.flip();
+        return true;
+    }
+
+    static byte[] readPayload(ReadableByteChannel in, int len) throws IOException {
+        ByteBuffer dst = ByteBuffer.allocate(len);
+        readFully(in, dst);
+        return dst.array();
+    }
+
+    static void readFully(ReadableByteChannel in, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            if (in.read(dst) < 0) throw new EOFException("Stream ended inside a frame payload");
+        }
+    }
+
+    static void skip(ReadableByteChannel in, int len, ByteBuffer scratch) throws IOException {
+        while (len > 0) {
+            scratch.clear().limit(Math.min(scratch.capacity(), len));
+            readFully(in, scratch);
+            len -= scratch.limit();
+        }
+    }
+
+    static void writeFully(GatheringByteChannel out, ByteBuffer... bufs) throws IOException {
+        writeFully(out, bufs, bufs.length);
+    }
+
+    static void writeFully(GatheringByteChannel out, ByteBuffer[] bufs, int count) throws IOException {
+        long left = 0;
+        for (int i = 0; i < count; i++) left += bufs[i].remaining();
+        while (left > 0) {
+            left -= out.write(bufs, 0, count);
+        }
+    }
+
+    /**
+     * Sends {@code header} and then copies exactly {@code len} payload bytes from
+     * {@code in} to {@code out} through {@code scratch}. The first chunk goes out
+     * together with the header in one gathering write.
+     */
+    static void forward(ReadableByteChannel in, GatheringByteChannel out,
+                        ByteBuffer header, int len, ByteBuffer scratch) throws IOException {
+        int left = len;
+        boolean headerSent = false;
+        do {
+            scratch.clear().limit(Math.min(scratch.capacity(), left));
+            readFully(in, scratch);
+            scratch.flip();
+            left -= scratch.remaining();
+            if (headerSent) {
+                writeFully(out, scratch);
+            } else {
+                writeFully(out, header, scratch);
+                headerSent = true;
+            }
+        } while (left > 0);
+    }
+}
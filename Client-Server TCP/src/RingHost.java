@@ -0,0 +1,399 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Hosts a whole InelTCP ring inside one JVM over loopback, using the binary
+ * RingFrame format. Node i listens on base_port + i and connects to node i + 1.
+ * Node 0 injects one token, waits for it to come back and injects the next,
+ * so the lap time is the pure ring traversal cost.
+ *
+ *   selector -> every position is driven by a single Selector thread
+ *   virtual  -> one virtual thread per position running the blocking forward loop
+ */
+public class RingHost {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: java RingHost <ring_size> <base_port> [--mode selector|virtual] [--laps N] [--size bytes]");
+
+            return;
+        }
+
+        int ringSize = Integer.parseInt(args[0]);
+        int basePort = Integer.parseInt(args[1]);
+        String mode = "selector";
+        int laps = 1000;
+        int size = 64;
+
+        for (int i = 2; i < args.length; i++) {
+            switch (args[i]) {
+                case "--mode":
+                    mode = args[++i];
+                    break;
+                case "--laps":
+                    laps = Integer.parseInt(args[++i]);
+                    break;
+                case "--size":
+                    size = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    System.out.println("Unknown option: " + args[i]);
+                    return;
+            }
+        }
+
+        if (ringSize < 2 || size < 0 || size > RingFrame.MAX_PAYLOAD) {
+            System.out.println("Need ring_size >= 2 and 0 <= size <= " + RingFrame.MAX_PAYLOAD);
+            return;
+        }
+        if (laps < 1) {
+            System.out.println("Need laps >= 1");
+            return;
+        }
+
+        Engine engine;
+        switch (mode) {
+            case "selector":
+                engine = new SelectorEngine(ringSize, basePort, size);
+                break;
+            case "virtual":
+                engine = new VirtualEngine(ringSize, basePort, size);
+                break;
+            default:
+                System.out.println("Unknown mode: " + mode);
+                return;
+        }
+
+        System.out.printf("Hosting %d ring nodes on 127.0.0.1:%d-%d (%s engine), %d laps of %d bytes%n",
+                ringSize, basePort, basePort + ringSize - 1, mode, laps, size);
+
+        // First 10% of the laps warm up the JIT and are not reported
+        int warmup = Math.max(1, laps / 10);
+        long[] lapNs;
+        try (engine) {
+            engine.open();
+            lapNs = engine.run(warmup + laps);
+        }
+
+        long[] measured = Arrays.copyOfRange(lapNs, warmup, lapNs.length);
+        Arrays.sort(measured);
+        double avgUs = Arrays.stream(measured).average().orElse(0) / 1000.0;
+        System.out.printf("==> ring=%d  traversal avg=%.1f us  p50=%.1f us  min=%.1f us  max=%.1f us  per hop=%.2f us%n",
+                ringSize, avgUs,
+                measured[measured.length / 2] / 1000.0,
+                measured[0] / 1000.0,
+                measured[measured.length - 1] / 1000.0,
+                avgUs / ringSize);
+    }
+
+    private abstract static class Engine implements Closeable {
+        final int ringSize;
+        final int basePort;
+        final int payloadSize;
+        final int loopbackIp;
+
+        Engine(int ringSize, int basePort, int payloadSize) {
+            this.ringSize = ringSize;
+            this.basePort = basePort;
+            this.payloadSize = payloadSize;
+            this.loopbackIp = RingFrame.ipv4(InetAddress.getLoopbackAddress());
+        }
+
+        InetSocketAddress address(int node) {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), basePort + node);
+        }
+
+        /** Appends the token for lap {@code seq}, originating at node 0, to {@code dst}. */
+        void putToken(ByteBuffer dst, long seq) {
+            int start = dst.position();
+            dst.putInt(payloadSize)
+                    .putShort((short) 0)
+                    .putShort((short) 0)
+                    .putInt(loopbackIp)
+                    .putInt(basePort)
+                    .putLong(seq);
+            dst.position(start + RingFrame.HEADER_LEN + payloadSize);
+        }
+
+        int bufferSize() {
+            return Math.max(RingFrame.CHUNK, 4 * (RingFrame.HEADER_LEN + payloadSize));
+        }
+
+        abstract void open() throws IOException;
+
+        /** Runs {@code laps} back-to-back traversals and returns each lap time in ns. */
+        abstract long[] run(int laps) throws IOException, InterruptedException;
+    }
+
+    private static final class SelectorEngine extends Engine {
+        private final Selector selector;
+        private final Position[] nodes;
+
+        private static final class Position {
+            final int index;
+            ServerSocketChannel server;
+            SocketChannel in;
+            SocketChannel out;
+            SelectionKey inKey;
+            SelectionKey outKey;
+            ByteBuffer inBuf;   // write mode: bytes read from IN but not yet framed
+            ByteBuffer outBuf;  // write mode: frames waiting for OUT
+            Position(int index) { this.index = index; }
+        }
+
+        private long[] lapNs;
+        private int lapsDone;
+        private long lapStart;
+
+        SelectorEngine(int ringSize, int basePort, int payloadSize) throws IOException {
+            super(ringSize, basePort, payloadSize);
+            this.selector = Selector.open();
+            this.nodes = new Position[ringSize];
+        }
+
+        @Override
+        void open() throws IOException {
+            for (int i = 0; i < ringSize; i++) {
+                Position p = new Position(i);
+                p.inBuf = ByteBuffer.allocateDirect(bufferSize());
+                p.outBuf = ByteBuffer.allocateDirect(bufferSize());
+                p.server = ServerSocketChannel.open();
+                p.server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                p.server.bind(address(i), ringSize);
+                p.server.configureBlocking(false);
+                p.server.register(selector, SelectionKey.OP_ACCEPT, p);
+                nodes[i] = p;
+            }
+            for (Position p : nodes) {
+                p.out = SocketChannel.open();
+                p.out.configureBlocking(false);
+                p.out.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                p.out.connect(address((p.index + 1) % ringSize));
+                p.outKey = p.out.register(selector, SelectionKey.OP_CONNECT, p);
+            }
+
+            int pending = 2 * ringSize;
+            while (pending > 0) {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Position p = (Position) key.attachment();
+                    if (key.isAcceptable()) {
+                        p.in = p.server.accept();
+                        p.in.configureBlocking(false);
+                        p.in.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                        p.inKey = p.in.register(selector, SelectionKey.OP_READ, p);
+                        key.cancel();
+                        pending--;
+                    } else if (key.isConnectable()) {
+                        p.out.finishConnect();
+                        key.interestOps(0);
+                        pending--;
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        }
+
+        @Override
+        long[] run(int laps) throws IOException {
+            lapNs = new long[laps];
+            lapsDone = 0;
+
+            Position origin = nodes[0];
+            lapStart = System.nanoTime();
+            putToken(origin.outBuf, 0);
+            flush(origin);
+
+            while (lapsDone < laps) {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Position p = (Position) key.attachment();
+                    if (!key.isValid()) continue;
+                    if (key == p.outKey && key.isWritable()) {
+                        flush(p);
+                    } else if (key == p.inKey && key.isReadable()) {
+                        if (p.in.read(p.inBuf) < 0) {
+                            throw new ClosedChannelException();
+                        }
+                        drain(p);
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+            return lapNs;
+        }
+
+        /** Frames everything buffered from IN; foreign frames are copied byte for byte to OUT. */
+        private void drain(Position p) throws IOException {
+            ByteBuffer src = p.inBuf;
+            src.flip();
+            boolean blocked = false;
+            while (src.remaining() >= RingFrame.HEADER_LEN) {
+                int at = src.position();
+                int frameLen = RingFrame.HEADER_LEN + src.getInt(at + RingFrame.LEN);
+                if (src.remaining() < frameLen) break;
+
+                if (src.getInt(at + RingFrame.ORIGIN_IP) == loopbackIp
+                        && src.getInt(at + RingFrame.ORIGIN_PORT) == basePort + p.index) {
+                    src.position(at + frameLen);
+                    completeLap(p);
+                    continue;
+                }
+
+                if (p.outBuf.remaining() < frameLen) {
+                    blocked = true;
+                    break;
+                }
+                src.putShort(at + RingFrame.HOPS, (short) ((src.getShort(at + RingFrame.HOPS) & 0xFFFF) + 1));
+                int limit = src.limit();
+                src.limit(at + frameLen);
+                p.outBuf.put(src);
+                src.limit(limit);
+            }
+            src.compact();
+
+            // OUT is full: stop reading IN until it drains, so a slow hop pushes back on its predecessor
+            if (blocked) p.inKey.interestOps(0);
+            flush(p);
+        }
+
+        private void completeLap(Position origin) {
+            long now = System.nanoTime();
+            lapNs[lapsDone++] = now - lapStart;
+            if (lapsDone < lapNs.length) {
+                lapStart = now;
+                putToken(origin.outBuf, lapsDone);
+            }
+        }
+
+        private void flush(Position p) throws IOException {
+            p.outBuf.flip();
+            p.out.write(p.outBuf);
+            p.outBuf.compact();
+
+            boolean pending = p.outBuf.position() > 0;
+            p.outKey.interestOps(pending ? SelectionKey.OP_WRITE : 0);
+            if (!pending && p.inKey.interestOps() == 0) {
+                p.inKey.interestOps(SelectionKey.OP_READ);
+                if (p.inBuf.position() > 0) drain(p);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Position p : nodes) {
+                if (p == null) continue;
+                closeQuietly(p.server);
+                closeQuietly(p.in);
+                closeQuietly(p.out);
+            }
+            selector.close();
+        }
+    }
+
+    private static final class VirtualEngine extends Engine {
+        private final ServerSocketChannel[] servers;
+        private final SocketChannel[] in;
+        private final SocketChannel[] out;
+        private final List<Thread> forwarders = new ArrayList<>();
+        private volatile boolean closing;
+
+        VirtualEngine(int ringSize, int basePort, int payloadSize) {
+            super(ringSize, basePort, payloadSize);
+            this.servers = new ServerSocketChannel[ringSize];
+            this.in = new SocketChannel[ringSize];
+            this.out = new SocketChannel[ringSize];
+        }
+
+        @Override
+        void open() throws IOException {
+            for (int i = 0; i < ringSize; i++) {
+                servers[i] = ServerSocketChannel.open();
+                servers[i].setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                servers[i].bind(address(i), ringSize);
+            }
+            // Listeners are bound, so every connect completes from the backlog before accept runs
+            for (int i = 0; i < ringSize; i++) {
+                out[i] = SocketChannel.open(address((i + 1) % ringSize));
+                out[i].setOption(StandardSocketOptions.TCP_NODELAY, true);
+            }
+            for (int i = 0; i < ringSize; i++) {
+                in[i] = servers[i].accept();
+                in[i].setOption(StandardSocketOptions.TCP_NODELAY, true);
+            }
+
+            for (int i = 1; i < ringSize; i++) {
+                int node = i;
+                forwarders.add(Thread.ofVirtual().name("ring-" + node).start(() -> forwardLoop(node)));
+            }
+        }
+
+        private void forwardLoop(int node) {
+            ByteBuffer header = ByteBuffer.allocateDirect(RingFrame.HEADER_LEN);
+            ByteBuffer scratch = ByteBuffer.allocateDirect(RingFrame.CHUNK);
+            try {
+                while (RingFrame.readHeader(in[node], header)) {
+                    RingFrame.incrementHops(header);
+                    RingFrame.forward(in[node], out[node], header, header.getInt(RingFrame.LEN), scratch);
+                }
+            } catch (IOException e) {
+                if (!closing) System.out.println("Error on node " + node + ": " + e.getMessage());
+            }
+        }
+
+        @Override
+        long[] run(int laps) throws IOException {
+            long[] lapNs = new long[laps];
+            ByteBuffer token = ByteBuffer.allocateDirect(RingFrame.HEADER_LEN + payloadSize);
+            ByteBuffer header = ByteBuffer.allocateDirect(RingFrame.HEADER_LEN);
+            ByteBuffer payload = ByteBuffer.allocateDirect(Math.max(1, payloadSize));
+
+            for (int lap = 0; lap < laps; lap++) {
+                token.clear();
+                putToken(token, lap);
+                token.flip();
+
+                long t0 = System.nanoTime();
+                RingFrame.writeFully(out[0], token);
+                if (!RingFrame.readHeader(in[0], header)) {
+                    throw new ClosedChannelException();
+                }
+                payload.clear().limit(header.getInt(RingFrame.LEN));
+                RingFrame.readFully(in[0], payload);
+                lapNs[lap] = System.nanoTime() - t0;
+            }
+            return lapNs;
+        }
+
+        @Override
+        public void close() {
+            closing = true;
+            for (int i = 0; i < ringSize; i++) {
+                closeQuietly(servers[i]);
+                closeQuietly(in[i]);
+                closeQuietly(out[i]);
+            }
+            for (Thread t : forwarders) {
+                try { t.join(1000); } catch (InterruptedException ignored) {}
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c == null) return;
+        try {
+            c.close();
+        } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,260 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single writer for a node's OUT channel. Producers hand over complete frames;
+ * the writer drains everything pending and sends it with one gathering write.
+ *
+ * Both the queue and the buffer pool are bounded, so a slow successor blocks
+ * the producers, which stop reading IN, which pushes back on the predecessor
+ * through TCP flow control instead of piling frames up in memory. Frames too
+ * large for a pooled buffer get one of their own, but those share a budget
+ * of MAX_OVERSIZE_BYTES, so a backlog of them is bounded in bytes as well.
+ *
+ * The link also watches the successor: it advertises its own successor back
+ * upstream every few hundred ms. If nothing arrives within the deadline the
+ * link reconnects to the successor's successor and retries the batch it was
+ * writing; {@code onHeal} then lets the node replay what was lost.
+ */
+final class RingOutLink {
+    static final int DEPTH = 1024;
+    static final int POOLED_FRAME = RingFrame.HEADER_LEN + 4096;
+    private static final int MAX_BATCH = 64;
+    // heap held by oversized frames at once; room for two of the largest
+    static final int MAX_OVERSIZE_BYTES = 2 * (RingFrame.HEADER_LEN + RingFrame.MAX_PAYLOAD);
+    private static final ByteBuffer CLOSE = ByteBuffer.allocate(0);
+
+    private final BlockingQueue<ByteBuffer> pending = new ArrayBlockingQueue<>(DEPTH);
+    private final BlockingQueue<ByteBuffer> pool = new ArrayBlockingQueue<>(DEPTH);
+    // fair, or a stream of small oversized frames could starve a large one
+    private final Semaphore oversizeBytes = new Semaphore(MAX_OVERSIZE_BYTES, true);
+    private final Set<ByteBuffer> oversized = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+    private final Thread writer;
+    private final Thread monitor;
+    private final int deadlineMs;
+    private final HealListener onHeal;
+
+    private final Object swap = new Object();
+    private volatile SocketChannel out;
+    private volatile InetSocketAddress successor;
+    private volatile InetSocketAddress nextSuccessor;
+    private long generation;
+
+    private volatile boolean stopping;
+    private volatile long frames;
+    private volatile long writes;
+
+    interface HealListener {
+        /** OUT is connected again; {@code dead} equals {@code now} if the old peer came back. */
+        void healed(RingOutLink link, InetSocketAddress dead, InetSocketAddress now) throws InterruptedException;
+    }
+
+    RingOutLink(SocketChannel out, InetSocketAddress successor, int deadlineMs, HealListener onHeal) {
+        this.out = out;
+        this.successor = successor;
+        this.deadlineMs = deadlineMs;
+        this.onHeal = onHeal;
+        for (int i = 0; i < DEPTH; i++) {
+            pool.add(ByteBuffer.allocateDirect(POOLED_FRAME));
+        }
+        this.writer = new Thread(this::writeLoop, "OutLink");
+        this.writer.setDaemon(true);
+        this.monitor = new Thread(this::monitorLoop, "OutMonitor");
+        this.monitor.setDaemon(true);
+    }
+
+    void start() {
+        writer.start();
+        monitor.start();
+    }
+
+    InetSocketAddress successor() {
+        return successor;
+    }
+
+    /** Takes a cleared pooled buffer, blocking while every buffer is queued for OUT. */
+    ByteBuffer acquire() throws InterruptedException {
+        return pool.take().clear();
+    }
+
+    /**
+     * Returns a buffer that can hold {@code frameLen} bytes, trading {@code f} in if it is too small.
+     * Blocks while oversized frames already queued for OUT use up the byte budget.
+     */
+    ByteBuffer ensureCapacity(ByteBuffer f, int frameLen) throws InterruptedException {
+        if (f.capacity() >= frameLen) return f;
+        oversizeBytes.acquire(frameLen);
+        ByteBuffer big = ByteBuffer.allocate(frameLen);
+        oversized.add(big);
+        f.position(0).limit(RingFrame.HEADER_LEN);
+        big.put(f);
+        release(f);
+        return big;
+    }
+
+    void release(ByteBuffer f) {
+        if (f.isDirect() && f.capacity() == POOLED_FRAME) pool.offer(f);
+        else if (oversized.remove(f)) oversizeBytes.release(f.capacity());
+    }
+
+    /** Queues a complete frame (position 0, limit at its end); blocks while the queue is full. */
+    void send(ByteBuffer frame) throws InterruptedException {
+        pending.put(frame);
+    }
+
+    /** The ring is being shut down on purpose: a successor going away is no longer a failure. */
+    void stopHealing() {
+        stopping = true;
+        synchronized (swap) {
+            swap.notifyAll();
+        }
+    }
+
+    /** Flushes everything queued so far and stops the writer. */
+    void close() throws InterruptedException {
+        stopHealing();
+        pending.put(CLOSE);
+        writer.join(2000);
+        try {
+            out.close();
+        } catch (IOException ignored) {}
+    }
+
+    long frames() {
+        return frames;
+    }
+
+    long writes() {
+        return writes;
+    }
+
+    private void writeLoop() {
+        ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
+        try {
+            boolean closing = false;
+            while (!closing) {
+                ByteBuffer next = pending.take();
+                if (next == CLOSE) break;
+
+                int n = 0;
+                batch[n++] = next;
+                while (n < MAX_BATCH && (next = pending.poll()) != null) {
+                    if (next == CLOSE) {
+                        closing = true;
+                        break;
+                    }
+                    batch[n++] = next;
+                }
+
+                while (true) {
+                    long gen;
+                    SocketChannel ch;
+                    synchronized (swap) {
+                        gen = generation;
+                        ch = out;
+                    }
+                    try {
+                        RingFrame.writeFully(ch, batch, n);
+                        frames += n;
+                        writes++;
+                        break;
+                    } catch (IOException e) {
+                        if (stopping) break;
+                        // Closing the channel wakes the monitor if it has not noticed yet
+                        try { ch.close(); } catch (IOException ignored) {}
+                        if (!awaitReplacement(gen)) break;
+                        for (int i = 0; i < n; i++) batch[i].position(0);
+                    }
+                }
+
+                for (int i = 0; i < n; i++) {
+                    release(batch[i]);
+                    batch[i] = null;
+                }
+            }
+        } catch (InterruptedException ignored) {}
+    }
+
+    private boolean awaitReplacement(long gen) throws InterruptedException {
+        synchronized (swap) {
+            while (generation == gen && !stopping) swap.wait();
+            return !stopping;
+        }
+    }
+
+    private void monitorLoop() {
+        while (!stopping) {
+            SocketChannel ch = out;
+            long lastHeard = System.nanoTime();
+            try {
+                ch.socket().setSoTimeout(deadlineMs);
+                DataInputStream adverts = new DataInputStream(new BufferedInputStream(ch.socket().getInputStream()));
+                while (true) {
+                    int ip = adverts.readInt();
+                    int port = adverts.readInt();
+                    lastHeard = System.nanoTime();
+
+                    InetSocketAddress advertised = RingFrame.address(ip, port);
+                    if (!advertised.equals(nextSuccessor)) nextSuccessor = advertised;
+                }
+            } catch (IOException e) {
+                if (stopping) return;
+                try {
+                    heal(ch, lastHeard, e);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void heal(SocketChannel broken, long lastHeardNs, IOException cause) throws InterruptedException {
+        long detected = System.nanoTime();
+        InetSocketAddress lost = successor;
+        InetSocketAddress bypass = nextSuccessor;
+        System.out.printf("[HEAL] OUT link to %s broken (%s), silent for %d ms%n",
+                lost, cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName(), TimeUnit.NANOSECONDS.toMillis(detected - lastHeardNs));
+        try { broken.close(); } catch (IOException ignored) {}
+
+        for (int tries = 0; !stopping; tries++) {
+            // Prefer the node after the dead one; fall back to the old peer in case it comes back
+            InetSocketAddress target = bypass != null && tries % 2 == 0 ? bypass : lost;
+            SocketChannel ch = null;
+            try {
+                ch = SocketChannel.open();
+                ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                ch.socket().connect(target, deadlineMs);
+            } catch (IOException e) {
+                if (ch != null) {
+                    try { ch.close(); } catch (IOException ignored) {}
+                }
+                TimeUnit.MILLISECONDS.sleep(Math.min(deadlineMs, 50L * (tries + 1)));
+                continue;
+            }
+
+            synchronized (swap) {
+                out = ch;
+                successor = target;
+                nextSuccessor = null;
+                generation++;
+                swap.notifyAll();
+            }
+            System.out.printf("[HEAL] OUT now %s, failover took %.1f ms (%.1f ms since last advert)%n",
+                    target, (System.nanoTime() - detected) / 1e6, (System.nanoTime() - lastHeardNs) / 1e6);
+            onHeal.healed(this, lost, target);
+            return;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+import java.nio.ByteBuffer;
+
+/**
+ * The frames this node originated that have not come home yet. Sequence s
+ * lives in slot s % size, so a frame can only go out once the one sent a
+ * whole window earlier is back: at most {@code size} are on the ring at once.
+ * A private copy is kept so they can be replayed after the ring heals around
+ * a dead node.
+ */
+final class RingWindow {
+    private final long[] seqs;          // 0 = free slot
+    private final ByteBuffer[] copies;
+
+    RingWindow(int size) {
+        this.seqs = new long[size];
+        this.copies = new ByteBuffer[size];
+    }
+
+    /** Blocks until {@code seq} (starting at 1) may be sent. */
+    synchronized void acquire(long seq) throws InterruptedException {
+        while (seqs[(int) (seq % seqs.length)] != 0) wait();
+    }
+
+    /** Remembers an outgoing frame (position 0, limit at its end) under its sequence number. */
+    synchronized void track(long seq, ByteBuffer frame) {
+        int slot = (int) (seq % seqs.length);
+        int len = frame.limit();
+        ByteBuffer copy = copies[slot];
+        if (copy == null || copy.capacity() < len) {
+            copy = copies[slot] = ByteBuffer.allocate(len);
+        }
+        copy.clear().put(0, frame, 0, len).limit(len);
+        seqs[slot] = seq;
+    }
+
+    /** True the first time {@code seq} comes home; replayed duplicates return false. */
+    synchronized boolean complete(long seq) {
+        int slot = (int) (seq % seqs.length);
+        if (seqs[slot] != seq) return false;
+        seqs[slot] = 0;
+        notifyAll();
+        return true;
+    }
+
+    /** Queues a fresh copy of every frame still out on the ring, oldest first. */
+    int replay(RingOutLink link) throws InterruptedException {
+        ByteBuffer[] frames;
+        synchronized (this) {
+            int n = 0;
+            for (long s : seqs) if (s != 0) n++;
+            frames = new ByteBuffer[n];
+            long[] order = new long[n];
+            n = 0;
+            for (int slot = 0; slot < seqs.length; slot++) {
+                if (seqs[slot] == 0) continue;
+                // insertion sort by sequence, windows are small
+                int at = n++;
+                while (at > 0 && order[at - 1] > seqs[slot]) {
+                    order[at] = order[at - 1];
+                    frames[at] = frames[at - 1];
+                    at--;
+                }
+                order[at] = seqs[slot];
+                ByteBuffer copy = ByteBuffer.allocate(copies[slot].limit());
+                copy.put(0, copies[slot], 0, copy.capacity());
+                frames[at] = copy;
+            }
+        }
+        for (ByteBuffer f : frames) link.send(f);
+        return frames.length;
+    }
+}
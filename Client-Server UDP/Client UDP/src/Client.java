@@ -1,29 +1,106 @@
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
 import java.net.SocketTimeoutException;
-import java.time.Duration;
-import java.time.Instant;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 
 public class Client {
     private static int[] message_sizes = {128, 512, 1024, 2048};
+    private static PrintWriter hist_out; // --hist-out: raw histogram buckets as CSV, for diffing runs
+    private static final String USAGE = "Usage: java Client <server_ip> <server_port> [runs per size] [--mode rtt|load|sweep] [--rate req/s] [--concurrency N] [--duration s] [--sweep-factor f] [--pool N] [--hist-out file.csv]";
     public static void main(String[] args) throws Exception
     {
         if(args.length < 2)
         {
-            System.out.println("Usage: java Client <server_ip> <server_port> [runs per size]");
+            System.out.println(USAGE);
 
             return;
         }
 
         String server_ip = args[0];
         int server_port = Integer.parseInt(args[1]);
-        int runs_per_size = args.length >= 3 ? Integer.parseInt(args[2]) : 1;
+        int runs_per_size = 1;
+        int first_option = 2;
+        if (args.length >= 3 && !args[2].startsWith("--")) {
+            runs_per_size = Integer.parseInt(args[2]);
+            first_option = 3;
+        }
+
+        String mode = "rtt";
+        int rate = 10000;
+        int concurrency = 256;
+        int duration_s = 5;
+        double sweep_factor = 1.5;
+        int pool = 0;
+        String hist_path = null;
+        for (int i = first_option; i < args.length; i++) {
+            switch (args[i]) {
+                case "--mode" -> mode = args[++i];
+                case "--rate" -> rate = Integer.parseInt(args[++i]);
+                case "--concurrency" -> concurrency = Integer.parseInt(args[++i]);
+                case "--duration" -> duration_s = Integer.parseInt(args[++i]);
+                case "--sweep-factor" -> sweep_factor = Double.parseDouble(args[++i]);
+                case "--pool" -> pool = Integer.parseInt(args[++i]);
+                case "--hist-out" -> hist_path = args[++i];
+                default -> {
+                    System.out.println("Unknown option: " + args[i]);
+                    return;
+                }
+            }
+        }
+
+        String invalid = null;
+        if (!mode.equals("rtt") && !mode.equals("load") && !mode.equals("sweep")) invalid = "--mode " + mode;
+        else if (rate <= 0) invalid = "--rate " + rate;
+        else if (concurrency <= 0) invalid = "--concurrency " + concurrency;
+        else if (duration_s <= 0) invalid = "--duration " + duration_s;
+        if (invalid != null) {
+            System.out.println("Invalid option: " + invalid);
+            System.out.println(USAGE);
+            return;
+        }
 
         InetAddress serverAddr = InetAddress.getByName(server_ip);
 
+        try {
+            // opened only once the arguments are good, closed whatever the run does
+            if (hist_path != null) {
+                hist_out = new PrintWriter(new FileWriter(hist_path));
+                hist_out.println("label,lower_ns,upper_ns,count");
+            }
+            if (mode.equals("load")) {
+                runLoad(serverAddr, server_port, rate, concurrency, duration_s);
+            } else if (mode.equals("sweep")) {
+                // a single probe per size says nothing, so the sweep has its own default
+                runSweep(serverAddr, server_port, first_option == 3 ? runs_per_size : 200, concurrency, sweep_factor);
+            } else if (pool > 0) {
+                runRttPooled(server_ip, serverAddr, server_port, runs_per_size, pool);
+            } else {
+                runRtt(server_ip, serverAddr, server_port, runs_per_size);
+            }
+        } finally {
+            if (hist_out != null) hist_out.close();
+        }
+    }
+
+    private static void runRtt(String server_ip, InetAddress serverAddr, int server_port, int runs_per_size) throws Exception {
         try (DatagramSocket socket = new DatagramSocket()){
             socket.setSoTimeout(3000); // ms
 
@@ -31,15 +108,15 @@ public class Client {
 
             for (int size : message_sizes)
             {
-                long total_rtt = 0;
-                int ok = 0;
+                LatencyHistogram rtts = new LatencyHistogram();
+                long allocated = allocatedBytes();
 
                 for (int i = 1; i <= runs_per_size; i ++)
                 {
                     byte[] data = payload(size, i);
                     DatagramPacket packet = new DatagramPacket(data, data.length, serverAddr, server_port);
 
-                    Instant t0 = Instant.now();
+                    long t0 = System.nanoTime();
                     socket.send(packet);
 
                     byte[] recvBuff = new byte[size + 64]; // safety reasons
@@ -47,9 +124,7 @@ public class Client {
 
                     try {
                         socket.receive(recvPacket);
-                        Instant t1 = Instant.now();
-
-                        long rtt = Duration.between(t0, t1).toMillis();
+                        long rtt = System.nanoTime() - t0;
 
                         boolean sizeOk = recvPacket.getLength() == size;
                         boolean seqOk = recvPacket.getLength() >= 4 &&
@@ -58,21 +133,24 @@ public class Client {
                                 recvBuff[2] == data[2] &&
                                 recvBuff[3] == data[3];
 
-                        System.out.printf("size=%4d  run=%d  RTT=%4d ms  (echo ok=%s, seq ok=%s)\n", size, i, rtt, sizeOk, seqOk);
+                        System.out.printf("size=%4d  run=%d  RTT=%9.1f us  (echo ok=%s, seq ok=%s)\n", size, i, rtt / 1e3, sizeOk, seqOk);
 
                         if (sizeOk && seqOk) {
-                            total_rtt += rtt;
-                            ok++;
+                            rtts.record(rtt);
                         }
                     }
                     catch(SocketTimeoutException e) {
                         System.out.printf("size=%4d  run=%d  RTT=TIMEOUT\n", size, i);
                     }
                 }
+                allocated = allocatedBytes() - allocated;
 
-                if (ok > 0)
+                if (rtts.count() > 0)
                 {
-                    System.out.printf("==> size=%4d  avg RTT=%.2f ms (%d/%d ok)\n\n", size, (double) total_rtt / ok, ok, runs_per_size);
+                    System.out.printf("==> size=%4d  avg RTT=%.1f us (%d/%d ok)\n", size, rtts.mean() / 1e3, rtts.count(), runs_per_size);
+                    printRtt(rtts);
+                    printAllocations(allocated, runs_per_size);
+                    exportHistogram("rtt-" + size, rtts);
                 } else {
                     System.out.printf("==> size=%4d  no valid responses.\n", size);
                 }
@@ -81,6 +159,373 @@ public class Client {
         }
     }
 
+    private static final long RTT_TIMEOUT_NS = TimeUnit.SECONDS.toNanos(3);
+    // select() without a selected-key set to fill, the ready key is read directly anyway
+    private static final Consumer<SelectionKey> NO_KEYS = k -> {};
+
+    /**
+     * Same probe as runRtt, but with nothing allocated per request: payloads
+     * come from a pool built before timing starts, the channel is connected
+     * so no sender address is created per reply, the receive buffer is
+     * reused, and runs are not printed one by one. Allocations are measured
+     * around the loop so a run that claims to be free of GC noise can show it.
+     */
+    private static void runRttPooled(String server_ip, InetAddress serverAddr, int server_port, int runs_per_size, int pool) throws Exception {
+        int max_size = Arrays.stream(message_sizes).max().orElse(0);
+        ByteBuffer recvBuff = ByteBuffer.allocateDirect(max_size + 64); // safety reasons
+
+        try (DatagramChannel channel = DatagramChannel.open();
+             Selector selector = Selector.open()) {
+            channel.connect(new InetSocketAddress(serverAddr, server_port));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+
+            System.out.printf("RTT test to %s:%d, for %s, runs per size: %d, pool of %d payloads\n", server_ip, server_port, Arrays.toString(message_sizes), runs_per_size, pool);
+
+            for (int size : message_sizes)
+            {
+                PayloadPool payloads = new PayloadPool(size, pool, size);
+                LatencyHistogram rtts = new LatencyHistogram();
+                int corrupt = 0, timeouts = 0, stale = 0;
+                long allocated = allocatedBytes();
+
+                for (int i = 1; i <= runs_per_size; i ++)
+                {
+                    long t0 = System.nanoTime();
+                    long deadline = t0 + RTT_TIMEOUT_NS;
+                    channel.write(payloads.next(i));
+
+                    while (true) {
+                        recvBuff.clear();
+                        int n;
+                        try {
+                            n = channel.read(recvBuff);
+                        } catch (PortUnreachableException e) {
+                            // connected UDP reports the ICMP error of an earlier send; nothing is listening
+                            timeouts++;
+                            break;
+                        }
+                        if (n <= 0) {
+                            long left = deadline - System.nanoTime();
+                            if (left <= 0) {
+                                timeouts++;
+                                break;
+                            }
+                            selector.select(NO_KEYS, Math.max(1, TimeUnit.NANOSECONDS.toMillis(left)));
+                            continue;
+                        }
+                        long rtt = System.nanoTime() - t0;
+                        recvBuff.flip();
+
+                        // a reply that arrived after its own timeout, keep waiting for ours
+                        if (PayloadPool.seqOf(recvBuff) != i && recvBuff.remaining() == size) {
+                            stale++;
+                            continue;
+                        }
+                        if (payloads.matches(i, recvBuff)) {
+                            rtts.record(rtt);
+                        } else {
+                            corrupt++;
+                        }
+                        break;
+                    }
+                }
+                allocated = allocatedBytes() - allocated;
+
+                if (rtts.count() > 0)
+                {
+                    System.out.printf("==> size=%4d  avg RTT=%.1f us (%d/%d ok, %d corrupt, %d timeouts, %d stale)\n",
+                            size, rtts.mean() / 1e3, rtts.count(), runs_per_size, corrupt, timeouts, stale);
+                    printRtt(rtts);
+                    printAllocations(allocated, runs_per_size);
+                    exportHistogram("rtt-" + size, rtts);
+                } else {
+                    System.out.printf("==> size=%4d  no valid responses (%d corrupt, %d timeouts).\n", size, corrupt, timeouts);
+                }
+                System.out.println();
+            }
+        }
+    }
+
+    // Open-loop load: a sender paced to the target rate and a receiver on the same socket,
+    // replies matched to requests by the sequence number at the start of payload()
+    private static final long REPLY_TIMEOUT_NS = TimeUnit.SECONDS.toNanos(1);
+    private static final long DONE = -1;
+
+    private static void runLoad(InetAddress serverAddr, int server_port, int rate, int concurrency, int duration_s) throws Exception {
+        System.out.printf("Load test to %s:%d, for %s, target %d req/s, max %d outstanding, %d s per size\n",
+                serverAddr.getHostAddress(), server_port, Arrays.toString(message_sizes), rate, concurrency, duration_s);
+
+        for (int size : message_sizes) {
+            int total = (int) Math.min(Integer.MAX_VALUE - 1, (long) rate * duration_s);
+            LoadRun run = runBurst(serverAddr, server_port, size, total, concurrency, rate);
+            long sendElapsed = run.sendElapsedNs;
+            long elapsed = run.elapsedNs;
+
+            System.out.printf("==> size=%5d  sent=%d in %.2f s (%.0f req/s, target %d, throttled %d)%n",
+                    size, run.total, sendElapsed / 1e9, run.total / (sendElapsed / 1e9), rate, run.throttled);
+            System.out.printf("    received=%d (%.0f replies/s)  lost=%d (%.3f%%)  reordered=%d  late=%d  duplicates=%d%n",
+                    run.received, run.received / (elapsed / 1e9), run.lost, 100.0 * run.lost / run.total,
+                    run.reordered, run.late, run.duplicates);
+
+            if (run.received > 0) {
+                printRtt(run.rtts);
+                exportHistogram("load-" + size, run.rtts);
+            } else {
+                System.out.println("    no valid responses.");
+            }
+            System.out.println();
+        }
+    }
+
+    /** Runs {@code total} requests of one size on a fresh socket and returns the finished run. */
+    private static LoadRun runBurst(InetAddress serverAddr, int server_port, int size, int total,
+                                    int concurrency, int rate) throws Exception {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setReceiveBufferSize(4 * 1024 * 1024);
+            socket.setSendBufferSize(4 * 1024 * 1024);
+            socket.setSoTimeout(100);
+
+            LoadRun run = new LoadRun(socket, size, total, concurrency);
+            Thread receiver = new Thread(run::receiveLoop, "Receiver");
+            receiver.start();
+
+            long start = System.nanoTime();
+            run.sendLoop(serverAddr, server_port, rate);
+            run.sendElapsedNs = System.nanoTime() - start;
+            receiver.join();
+            run.elapsedNs = System.nanoTime() - start;
+            return run;
+        }
+    }
+
+    private static final class LoadRun {
+        final DatagramSocket socket;
+        final int size;
+        final int total;
+        final Semaphore outstanding;
+        final AtomicLongArray sentAt;   // by seq: send time, 0 = not sent yet, DONE = answered or lost
+        final LatencyHistogram rtts = new LatencyHistogram();
+
+        volatile int lastSent;
+        volatile boolean sending = true;
+        long throttled;                 // sender only
+        long sendElapsedNs, elapsedNs;
+
+        long received, lost, reordered, late, duplicates; // receiver only, read after join
+
+        LoadRun(DatagramSocket socket, int size, int total, int concurrency) {
+            this.socket = socket;
+            this.size = size;
+            this.total = total;
+            this.outstanding = new Semaphore(concurrency);
+            this.sentAt = new AtomicLongArray(total + 1);
+        }
+
+        void sendLoop(InetAddress serverAddr, int server_port, int rate) throws Exception {
+            byte[] data = payload(size, 0);
+            DatagramPacket packet = new DatagramPacket(data, data.length, serverAddr, server_port);
+            long intervalNs = TimeUnit.SECONDS.toNanos(1) / rate;
+            long start = System.nanoTime();
+
+            try {
+                for (int seq = 1; seq <= total; seq++) {
+                    // Open loop: the schedule does not wait for replies, only the concurrency cap can hold it back
+                    long due = start + (seq - 1) * intervalNs;
+                    long now = System.nanoTime();
+                    if (due > now) LockSupport.parkNanos(due - now);
+
+                    if (!outstanding.tryAcquire()) {
+                        throttled++;
+                        outstanding.acquire();
+                    }
+
+                    data[0] = (byte) ((seq >>> 24) & 0xFF);
+                    data[1] = (byte) ((seq >>> 16) & 0xFF);
+                    data[2] = (byte) ((seq >>> 8) & 0xFF);
+                    data[3] = (byte) (seq & 0xFF);
+
+                    sentAt.set(seq, System.nanoTime());
+                    socket.send(packet);
+                    lastSent = seq;
+                }
+            } finally {
+                sending = false;
+            }
+        }
+
+        void receiveLoop() {
+            byte[] recvBuff = new byte[size + 64];
+            DatagramPacket recvPacket = new DatagramPacket(recvBuff, recvBuff.length);
+            int highest = 0;
+            int oldest = 1; // lowest seq that may still be outstanding
+
+            while (true) {
+                try {
+                    socket.receive(recvPacket);
+                    long now = System.nanoTime();
+                    int seq = recvPacket.getLength() == size && size >= 4
+                            ? ((recvBuff[0] & 0xFF) << 24) | ((recvBuff[1] & 0xFF) << 16) | ((recvBuff[2] & 0xFF) << 8) | (recvBuff[3] & 0xFF)
+                            : 0;
+                    if (seq >= 1 && seq <= total) {
+                        long t0 = sentAt.getAndSet(seq, DONE);
+                        if (t0 > 0) {
+                            rtts.record(now - t0);
+                            received++;
+                            if (seq < highest) reordered++;
+                            else highest = seq;
+                            outstanding.release();
+                        } else if (seq < oldest) {
+                            late++;
+                        } else {
+                            duplicates++;
+                        }
+                    }
+                } catch (SocketTimeoutException ignored) {
+                } catch (Exception e) {
+                    break;
+                }
+
+                // Give up on requests older than the reply timeout, oldest first
+                boolean stillSending = sending;
+                int last = lastSent;
+                long now = System.nanoTime();
+                while (oldest <= last) {
+                    long t0 = sentAt.get(oldest);
+                    if (t0 == DONE) {
+                        oldest++;
+                    } else if (now - t0 > REPLY_TIMEOUT_NS && sentAt.compareAndSet(oldest, t0, DONE)) {
+                        lost++;
+                        outstanding.release();
+                        oldest++;
+                    } else {
+                        break;
+                    }
+                }
+                if (!stillSending && oldest > last) break;
+            }
+        }
+    }
+
+    // Payload sweep: idle RTT from stop-and-wait probes, loss and goodput from a windowed burst
+    private static final int MIN_SWEEP_SIZE = 64;
+    private static final int MAX_UDP_PAYLOAD = 65507;
+
+    private static final class SweepPoint {
+        final int size;
+        final long p50;
+        final long p99;
+        final double lossPct;
+        final double goodput; // payload bytes echoed per second
+
+        SweepPoint(int size, LoadRun probe, LoadRun burst) {
+            this.size = size;
+            this.p50 = probe.rtts.percentile(50);
+            this.p99 = probe.rtts.percentile(99);
+            this.lossPct = 100.0 * (probe.lost + burst.lost) / (probe.total + burst.total);
+            this.goodput = (double) burst.received * size / (burst.elapsedNs / 1e9);
+        }
+    }
+
+    private static void runSweep(InetAddress serverAddr, int server_port, int runs, int concurrency, double factor) throws Exception {
+        if (factor <= 1.0) {
+            System.out.println("Sweep factor must be greater than 1");
+            return;
+        }
+        System.out.printf("Payload sweep to %s:%d, sizes %d..%d x%.2f, %d probes + %d burst requests (window %d) per size\n",
+                serverAddr.getHostAddress(), server_port, MIN_SWEEP_SIZE, MAX_UDP_PAYLOAD, factor, runs, runs * 10, concurrency);
+        System.out.println("   size   p50 us   p99 us   loss %   goodput MB/s");
+
+        List<SweepPoint> points = new ArrayList<>();
+        for (double sz = MIN_SWEEP_SIZE; ; sz *= factor) {
+            int size = (int) Math.min(MAX_UDP_PAYLOAD, Math.round(sz));
+            if (!points.isEmpty() && points.get(points.size() - 1).size == size) break;
+            SweepPoint p = measurePoint(serverAddr, server_port, size, runs, concurrency);
+            points.add(p);
+            printPoint(p);
+            if (size == MAX_UDP_PAYLOAD) break;
+        }
+
+        int knee = findKnee(points);
+        if (knee < 0) {
+            System.out.println("==> no fragmentation knee: RTT and loss grow smoothly up to " + MAX_UDP_PAYLOAD + " bytes");
+        } else {
+            SweepPoint lo = points.get(knee - 1), hi = points.get(knee);
+            System.out.printf("==> knee between %d and %d bytes, bisecting%n", lo.size, hi.size);
+            // Binary search for the first size that pays the step seen between lo and hi
+            long stepMid = (lo.p50 + hi.p50) / 2;
+            int a = lo.size, b = hi.size;
+            while (b - a > 8) {
+                int mid = (a + b) >>> 1;
+                SweepPoint p = measurePoint(serverAddr, server_port, mid, runs, concurrency);
+                printPoint(p);
+                if (p.p50 > stepMid || p.lossPct > (lo.lossPct + hi.lossPct) / 2 + 0.5) b = mid;
+                else a = mid;
+            }
+            System.out.printf("==> knee at ~%d bytes: largest payload before the RTT/loss step ~%d bytes%n", b, a);
+        }
+
+        SweepPoint best = points.get(0);
+        for (SweepPoint p : points) if (p.goodput > best.goodput) best = p;
+        System.out.printf("==> best goodput %.1f MB/s at %d bytes (p50 %.1f us, loss %.2f%%)%n",
+                best.goodput / 1e6, best.size, best.p50 / 1e3, best.lossPct);
+    }
+
+    private static SweepPoint measurePoint(InetAddress serverAddr, int server_port, int size, int runs, int concurrency) throws Exception {
+        LoadRun probe = runBurst(serverAddr, server_port, size, runs, 1, Integer.MAX_VALUE);
+        LoadRun burst = runBurst(serverAddr, server_port, size, runs * 10, concurrency, Integer.MAX_VALUE);
+        exportHistogram("sweep-" + size, probe.rtts);
+        return new SweepPoint(size, probe, burst);
+    }
+
+    private static void printPoint(SweepPoint p) {
+        System.out.printf("  %5d  %7.1f  %7.1f  %7.3f  %13.1f%n",
+                p.size, p.p50 / 1e3, p.p99 / 1e3, p.lossPct, p.goodput / 1e6);
+    }
+
+    /**
+     * First step where RTT grows much faster per byte than it did so far, or where
+     * loss jumps: that is the extra fragment (and its chance to be dropped) showing up.
+     */
+    private static int findKnee(List<SweepPoint> points) {
+        double slopeSum = 0;
+        int slopes = 0;
+        for (int i = 1; i < points.size(); i++) {
+            SweepPoint lo = points.get(i - 1), hi = points.get(i);
+            double slope = (double) (hi.p50 - lo.p50) / (hi.size - lo.size);
+            boolean rttStep = slopes > 0 && hi.p50 - lo.p50 > 5_000 && slope > 3 * Math.max(slopeSum / slopes, 0.5);
+            boolean lossStep = hi.lossPct - lo.lossPct > 1.0;
+            if (rttStep || lossStep) return i;
+            slopeSum += Math.max(0, slope);
+            slopes++;
+        }
+        return -1;
+    }
+
+    private static void printRtt(LatencyHistogram h) {
+        System.out.printf("    RTT us: min=%.1f  p50=%.1f  p90=%.1f  p99=%.1f  p999=%.1f  max=%.1f  mean=%.1f  stddev=%.1f%n",
+                h.min() / 1e3, h.percentile(50) / 1e3, h.percentile(90) / 1e3, h.percentile(99) / 1e3,
+                h.percentile(99.9) / 1e3, h.max() / 1e3, h.mean() / 1e3, h.stddev() / 1e3);
+    }
+
+    // Per-thread allocation counter, null if this JVM does not provide one
+    private static final com.sun.management.ThreadMXBean alloc_counter =
+            ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean mx
+                    && mx.isThreadAllocatedMemorySupported() ? mx : null;
+
+    private static long allocatedBytes() {
+        return alloc_counter == null ? 0 : alloc_counter.getCurrentThreadAllocatedBytes();
+    }
+
+    private static void printAllocations(long allocated, int requests) {
+        if (alloc_counter == null) return;
+        System.out.printf("    allocated: %d bytes, %.1f bytes/request%n", allocated, (double) allocated / requests);
+    }
+
+    private static void exportHistogram(String label, LatencyHistogram h) {
+        if (hist_out != null) h.export(hist_out, label);
+    }
+
     private static byte[] payload(int size, int seq) {
         byte[] data = new byte[size];
         new Random(seq).nextBytes(data);
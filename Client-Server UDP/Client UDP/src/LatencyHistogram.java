@@ -0,0 +1,89 @@
+import java.io.PrintWriter;
+
+/**
+ * Fixed-memory log-linear histogram of nanosecond values. Every power of two
+ * is split into 64 linear sub-buckets, so any recorded value is reported with
+ * less than 1.6% error whatever its magnitude, in about 30 KB per histogram.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BITS = 7;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF = SUB_COUNT / 2;
+
+    private final long[] counts = new long[index(Long.MAX_VALUE) + 1];
+    private long count;
+    private long min = Long.MAX_VALUE;
+    private long max;
+    private double sum;
+    private double sumSquares;
+
+    void record(long value) {
+        if (value < 0) value = 0;
+        counts[index(value)]++;
+        count++;
+        sum += value;
+        sumSquares += (double) value * value;
+        if (value < min) min = value;
+        if (value > max) max = value;
+    }
+
+    long count() {
+        return count;
+    }
+
+    long min() {
+        return count == 0 ? 0 : min;
+    }
+
+    long max() {
+        return max;
+    }
+
+    double mean() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    double stddev() {
+        if (count < 2) return 0;
+        double mean = mean();
+        return Math.sqrt(Math.max(0, sumSquares / count - mean * mean));
+    }
+
+    /** Upper bound of the bucket holding the given percentile (0..100), capped at max. */
+    long percentile(double p) {
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(p / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(max, upperBound(i));
+        }
+        return max;
+    }
+
+    /** Writes the non-empty buckets as CSV rows: label,lower_ns,upper_ns,count. */
+    void export(PrintWriter out, String label) {
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0) continue;
+            out.printf("%s,%d,%d,%d%n", label, lowerBound(i), upperBound(i), counts[i]);
+        }
+    }
+
+    private static int index(long v) {
+        if (v < SUB_COUNT) return (int) v;
+        int shift = 63 - Long.numberOfLeadingZeros(v) - (SUB_BITS - 1);
+        return shift * HALF + (int) (v >>> shift);
+    }
+
+    private static long lowerBound(int index) {
+        if (index < SUB_COUNT) return index;
+        int shift = index / HALF - 1;
+        return (index - (long) shift * HALF) << shift;
+    }
+
+    private static long upperBound(int index) {
+        if (index < SUB_COUNT) return index;
+        int shift = index / HALF - 1;
+        return lowerBound(index) + (1L << shift) - 1;
+    }
+}
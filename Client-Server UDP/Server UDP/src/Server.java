@@ -1,20 +1,79 @@
+import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Server {
+    private static final int MAX_UDP = 65507; // Max UDP packet size
+    private static final int SOCKET_BUFFER = 4 * 1024 * 1024;
+
+    // Sampled by the stats thread instead of printing every datagram
+    private static final LongAdder packets = new LongAdder();
+    private static final LongAdder bytes = new LongAdder();
+    private static final LongAdder errors = new LongAdder();
+    // reactor only: echoes not sent because the socket send buffer was full
+    private static final LongAdder dropped = new LongAdder();
+
+    private static final String USAGE = "Usage: java Server <port> [--mode classic|reuseport|reactor] [--workers N] [--stats-ms ms]";
+
     public static void main(String[] args) throws Exception {
         if (args.length < 1) {
-            System.out.println("Usage: java Server <port>");
+            System.out.println(USAGE);
             return;
         }
 
         int port = Integer.parseInt(args[0]);
+        String mode = "classic";
+        int workers = Runtime.getRuntime().availableProcessors();
+        long statsMs = 1000;
+
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--mode" -> mode = args[++i];
+                case "--workers" -> workers = Integer.parseInt(args[++i]);
+                case "--stats-ms" -> statsMs = Long.parseLong(args[++i]);
+                default -> {
+                    System.out.println("Unknown option: " + args[i]);
+                    return;
+                }
+            }
+        }
 
+        if (workers < 1 || statsMs < 1) {
+            System.out.println("Invalid option: " + (workers < 1 ? "--workers " + workers : "--stats-ms " + statsMs));
+            System.out.println(USAGE);
+            return;
+        }
+
+        switch (mode) {
+            case "classic" -> runClassic(port);
+            case "reuseport" -> {
+                startStats(statsMs);
+                runReusePort(port, workers);
+            }
+            case "reactor" -> {
+                startStats(statsMs);
+                runReactor(port, workers);
+            }
+            default -> System.out.println("Unknown mode: " + mode);
+        }
+    }
+
+    private static void runClassic(int port) throws IOException {
         try (DatagramSocket server = new DatagramSocket(port)) {
             System.out.println("Server listening on port " + port);
 
-            byte[] buffer = new byte[65507]; // Max UDP packet size
+            byte[] buffer = new byte[MAX_UDP];
 
             while(true)
             {
@@ -32,4 +91,148 @@ public class Server {
             }
         }
     }
+
+    /**
+     * N channels bound to the same port with SO_REUSEPORT; the kernel spreads
+     * clients over them and every worker echoes on its own channel with its
+     * own direct buffer, so workers share nothing but the counters.
+     */
+    private static void runReusePort(int port, int workers) throws Exception {
+        try (DatagramChannel probe = DatagramChannel.open()) {
+            if (!probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                System.out.println("SO_REUSEPORT is not supported here, falling back to reactor mode");
+                runReactor(port, workers);
+                return;
+            }
+        }
+
+        System.out.printf("Server listening on port %d (reuseport, %d workers)%n", port, workers);
+
+        Thread[] threads = new Thread[workers];
+        for (int w = 0; w < workers; w++) {
+            DatagramChannel ch = openChannel(port, true);
+            threads[w] = new Thread(() -> echoLoop(ch), "Echo-" + w);
+            threads[w].start();
+        }
+        for (Thread t : threads) t.join();
+    }
+
+    private static void echoLoop(DatagramChannel ch) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(MAX_UDP);
+        while (ch.isOpen()) {
+            try {
+                buf.clear();
+                SocketAddress client = ch.receive(buf);
+                buf.flip();
+                int len = buf.remaining();
+                ch.send(buf, client);
+                packets.increment();
+                bytes.add(len);
+            } catch (IOException e) {
+                errors.increment();
+            }
+        }
+    }
+
+    /**
+     * One non-blocking channel drained by a selector thread, echoes done by a
+     * pool of workers. Buffers circulate between a free list and the work
+     * queue, so the steady state allocates nothing but the client address.
+     */
+    private static void runReactor(int port, int workers) throws Exception {
+        DatagramChannel ch = openChannel(port, false);
+        ch.configureBlocking(false);
+        System.out.printf("Server listening on port %d (reactor, %d workers)%n", port, workers);
+
+        int depth = 64 * workers;
+        BlockingQueue<Datagram> free = new ArrayBlockingQueue<>(depth);
+        BlockingQueue<Datagram> work = new ArrayBlockingQueue<>(depth);
+        for (int i = 0; i < depth; i++) free.add(new Datagram());
+
+        for (int w = 0; w < workers; w++) {
+            Thread t = new Thread(() -> {
+                try {
+                    while (true) {
+                        Datagram d = work.take();
+                        try {
+                            int len = d.buf.remaining();
+                            // send on a non-blocking channel returns 0 if the socket buffer is full; the echo is dropped, like UDP would
+                            if (ch.send(d.buf, d.client) == 0) {
+                                dropped.increment();
+                            } else {
+                                packets.increment();
+                                bytes.add(len);
+                            }
+                        } catch (IOException e) {
+                            errors.increment();
+                        }
+                        d.client = null;
+                        free.put(d);
+                    }
+                } catch (InterruptedException ignored) {}
+            }, "Echo-" + w);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        try (Selector selector = Selector.open()) {
+            ch.register(selector, SelectionKey.OP_READ);
+            while (true) {
+                selector.select();
+                selector.selectedKeys().clear();
+
+                // Drain everything the socket holds before selecting again
+                while (true) {
+                    Datagram d = free.take();
+                    d.buf.clear();
+                    d.client = ch.receive(d.buf);
+                    if (d.client == null) {
+                        free.put(d);
+                        break;
+                    }
+                    d.buf.flip();
+                    work.put(d);
+                }
+            }
+        }
+    }
+
+    private static final class Datagram {
+        final ByteBuffer buf = ByteBuffer.allocateDirect(MAX_UDP);
+        SocketAddress client;
+    }
+
+    private static DatagramChannel openChannel(int port, boolean reusePort) throws IOException {
+        DatagramChannel ch = DatagramChannel.open();
+        if (reusePort) ch.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        ch.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER);
+        ch.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER);
+        ch.bind(new InetSocketAddress(port));
+        return ch;
+    }
+
+    private static void startStats(long periodMs) {
+        Thread t = new Thread(() -> {
+            long lastPackets = 0, lastBytes = 0, lastErrors = 0, lastDropped = 0;
+            long last = System.nanoTime();
+            while (true) {
+                try { Thread.sleep(periodMs); } catch (InterruptedException e) { return; }
+                long now = System.nanoTime();
+                long p = packets.sum(), b = bytes.sum(), e = errors.sum(), d = dropped.sum();
+                double secs = (now - last) / 1e9;
+                if (p != lastPackets || e != lastErrors || d != lastDropped) {
+                    System.out.printf("echo %.0f pkt/s  %.1f MB/s  avg %d B  errors %d  dropped (send buffer full) %d  (total %d)%n",
+                            (p - lastPackets) / secs, (b - lastBytes) / secs / 1e6,
+                            p == lastPackets ? 0 : (b - lastBytes) / (p - lastPackets), e - lastErrors, d - lastDropped, p);
+                }
+                lastPackets = p;
+                lastBytes = b;
+                lastErrors = e;
+                lastDropped = d;
+                last = now;
+            }
+        }, "Stats");
+        t.setDaemon(true);
+        t.start();
+    }
 }
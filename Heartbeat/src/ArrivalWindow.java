@@ -0,0 +1,55 @@
+/**
+ * The last few inter-arrival times of one peer in a primitive ring buffer,
+ * with running sums so mean and standard deviation cost O(1) per heartbeat.
+ * Intervals are stored as ints: a node tracks every peer, so this is the
+ * bulk of its memory in a large cluster.
+ */
+public class ArrivalWindow {
+    private final int[] intervals;
+    private int next;
+    private int count;
+    private long sum;
+    private double sumSquares;
+    private long last = -1;
+
+    public ArrivalWindow(int size) {
+        this.intervals = new int[size];
+    }
+
+    /** Records a heartbeat arriving at {@code now}; the first one only starts the clock. */
+    public void arrived(long now) {
+        if (last >= 0) {
+            int interval = (int) Math.min(Integer.MAX_VALUE, Math.max(0, now - last));
+            if (count == intervals.length) {
+                int old = intervals[next];
+                sum -= old;
+                sumSquares -= (double) old * old;
+            } else {
+                count++;
+            }
+            intervals[next] = interval;
+            next = (next + 1) % intervals.length;
+            sum += interval;
+            sumSquares += (double) interval * interval;
+        }
+        last = now;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public long last() {
+        return last;
+    }
+
+    public double mean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    public double stddev() {
+        if (count < 2) return 0;
+        double mean = mean();
+        return Math.sqrt(Math.max(0, sumSquares / count - mean * mean));
+    }
+}
@@ -0,0 +1,330 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Runs a whole cluster of {@link NodeCore}s in one thread on a virtual clock.
+ *
+ * Datagrams go through an in-memory network with configurable loss, latency,
+ * jitter and one timed partition; some nodes can be crashed mid-run. Every
+ * run with the same seed is the same run, and a virtual minute of a thousand
+ * nodes takes seconds, so heartbeat and timeout settings can be compared
+ * against cluster size: detection latency, false positives, message load.
+ *
+ * Usage:
+ *   java -Xmx2g ClusterSimulator <nodes> [--mode multicast|swim] [--duration s]
+ *        [--loss p] [--latency ms] [--jitter ms] [--kill N] [--kill-at s]
+ *        [--partition start_s:length_s:fraction] [--phi threshold] [--window N] [--budget bytes/s] [--seed n]
+ *
+ * A multicast datagram gets one latency for all receivers; loss is decided per
+ * receiver. The partition cuts the first {@code fraction} of the nodes off from
+ * the rest for its duration.
+ */
+public class ClusterSimulator {
+    private static final int PORT = 7000;
+
+    private final Random random;
+    private final PriorityQueue<Event> queue = new PriorityQueue<>();
+    private long now;
+    private long order;
+
+    private final SimNode[] nodes;
+    private final double loss;
+    private final long latencyMs;
+    private final long jitterMs;
+    private long partitionStart = Long.MAX_VALUE;
+    private long partitionEnd = Long.MAX_VALUE;
+    private int partitionSize;
+
+    // results
+    private long packetsSent, bytesSent, packetsDelivered, packetsLost;
+    private long[] detections = new long[64];
+    private int detectionCount;
+    private long falsePositives, partitionDetections, healDetections, revivals;
+    private int converged;
+    private long convergedAt = -1;
+
+    private record Event(long at, long order, Runnable action) implements Comparable<Event> {
+        @Override
+        public int compareTo(Event o) {
+            return at != o.at ? Long.compare(at, o.at) : Long.compare(order, o.order);
+        }
+    }
+
+    private final class SimNode implements NodeCore.Transport, NodeCore.Events {
+        final int index;
+        final InetAddress address;
+        NodeCore core;
+        boolean crashed;
+        long crashedAt;
+        int known;
+        int detectedBy;   // how many live nodes declared this one dead, once crashed
+
+        SimNode(int index) throws UnknownHostException {
+            this.index = index;
+            this.address = InetAddress.getByAddress(bytes(ipv4(index)));
+        }
+
+        @Override
+        public void multicast(byte[] data, int len) {
+            packetsSent++;
+            bytesSent += len;
+            byte[] copy = Arrays.copyOf(data, len);
+            schedule(now + delay(), () -> {
+                ByteBuffer view = ByteBuffer.wrap(copy);
+                for (SimNode to : nodes) {
+                    if (to != this && deliverable(this, to)) to.core.receiveMulticast(view, len, address);
+                }
+            });
+        }
+
+        @Override
+        public void unicast(InetSocketAddress to, byte[] data, int len) {
+            packetsSent++;
+            bytesSent += len;
+            int target = (ipv4(to.getAddress()) & 0xFFFFFF) - 1;
+            if (target < 0 || target >= nodes.length) return;
+            SimNode dst = nodes[target];
+            String text = new String(data, 0, len, StandardCharsets.UTF_8);
+            schedule(now + delay(), () -> {
+                if (deliverable(this, dst)) dst.core.receiveUnicast(text);
+            });
+        }
+
+        void tick() {
+            if (crashed) return;
+            core.tick();
+            schedule(now + core.config().tickMs, this::tick);
+        }
+
+        @Override
+        public void alive(int id, boolean firstSeen) {
+            if (!firstSeen) {
+                revivals++;
+                return;
+            }
+            if (++known == nodes.length - 1 && ++converged == nodes.length) convergedAt = now;
+        }
+
+        @Override
+        public void dead(int id, long silentMs) {
+            SimNode victim = nodes[id - 1];
+            if (victim.crashed) {
+                if (detectionCount == detections.length) detections = Arrays.copyOf(detections, detectionCount * 2);
+                detections[detectionCount++] = now - victim.crashedAt;
+                victim.detectedBy++;
+            } else if (now >= partitionEnd) {
+                // stale death rumours crossing the healed link, counted apart from the partition itself
+                healDetections++;
+            } else if (now >= partitionStart) {
+                partitionDetections++;
+            } else {
+                falsePositives++;
+            }
+        }
+
+        @Override
+        public void evicted(int id) {}
+    }
+
+    ClusterSimulator(int n, NodeCore.Config template, double loss, long latencyMs, long jitterMs, long seed) throws UnknownHostException {
+        this.random = new Random(seed);
+        this.loss = loss;
+        this.latencyMs = latencyMs;
+        this.jitterMs = jitterMs;
+        this.nodes = new SimNode[n];
+        for (int i = 0; i < n; i++) {
+            SimNode node = new SimNode(i);
+            NodeCore.Config config = copy(template);
+            config.seed = seed + i;
+            int ip = ipv4(i);
+            node.core = new NodeCore(i + 1, PORT, InetAddressInfo.ipString(ip), () -> ip, config, node, () -> now, node);
+            nodes[i] = node;
+            // spread the nodes over one tick so they do not all beat at the same instant
+            schedule(random.nextLong(template.tickMs), node::tick);
+        }
+    }
+
+    void partition(long startMs, long lengthMs, double fraction) {
+        partitionStart = startMs;
+        partitionEnd = startMs + lengthMs;
+        partitionSize = (int) (nodes.length * fraction);
+    }
+
+    void killAt(long atMs, int count) {
+        schedule(atMs, () -> {
+            int killed = 0;
+            for (int tries = 0; killed < count && tries < 100 * nodes.length; tries++) {
+                SimNode victim = nodes[random.nextInt(nodes.length)];
+                if (victim.crashed) continue;
+                victim.crashed = true;
+                victim.crashedAt = now;
+                killed++;
+            }
+        });
+    }
+
+    void run(long durationMs) {
+        while (!queue.isEmpty() && queue.peek().at() <= durationMs) {
+            Event e = queue.poll();
+            now = e.at();
+            e.action().run();
+        }
+        now = durationMs;
+    }
+
+    void report(long durationMs, long wallMs) {
+        int n = nodes.length;
+        int crashed = 0;
+        for (SimNode node : nodes) if (node.crashed) crashed++;
+        long fullyDetected = 0;
+        for (SimNode node : nodes) {
+            if (node.crashed && node.detectedBy >= n - crashed) fullyDetected++;
+        }
+        double secs = durationMs / 1000.0;
+
+        System.out.printf("%d nodes, %.0f s virtual in %.1f s wall%n", n, secs, wallMs / 1000.0);
+        System.out.printf("membership: %s%n", convergedAt >= 0
+                ? String.format("every node knew every other after %.1f s", convergedAt / 1000.0)
+                : converged + "/" + n + " nodes saw the whole cluster");
+        System.out.printf("load per node: %.1f pkt/s sent, %.1f pkt/s received, %.0f B/s sent (%.2f%% lost in transit)%n",
+                packetsSent / (double) n / secs, packetsDelivered / (double) n / secs, bytesSent / (double) n / secs,
+                packetsDelivered + packetsLost == 0 ? 0 : 100.0 * packetsLost / (packetsDelivered + packetsLost));
+        if (crashed > 0) {
+            long[] d = Arrays.copyOf(detections, detectionCount);
+            Arrays.sort(d);
+            System.out.printf("crashed %d: %d/%d detected by every live node, %d detections%n",
+                    crashed, fullyDetected, crashed, detectionCount);
+            if (detectionCount > 0) {
+                System.out.printf("detection latency ms: min=%d  p50=%d  p99=%d  max=%d  mean=%.0f%n",
+                        d[0], d[percentile(d.length, 50)], d[percentile(d.length, 99)], d[d.length - 1],
+                        Arrays.stream(d).average().orElse(0));
+            }
+        }
+        long minInterval = Long.MAX_VALUE, maxInterval = 0;
+        for (SimNode node : nodes) {
+            if (node.crashed) continue;
+            minInterval = Math.min(minInterval, node.core.heartbeatIntervalMs());
+            maxInterval = Math.max(maxInterval, node.core.heartbeatIntervalMs());
+        }
+        System.out.printf("heartbeat interval at the end: %d..%d ms%n", minInterval, maxInterval);
+        System.out.printf("false positives: %d (%.3f per node per minute), revivals: %d%n",
+                falsePositives, falsePositives / (double) n / (secs / 60), revivals);
+        if (partitionStart != Long.MAX_VALUE) {
+            System.out.printf("partition: %d deaths declared while it lasted, %d after it healed%n",
+                    partitionDetections, healDetections);
+        }
+    }
+
+    private static int percentile(int len, double p) {
+        return Math.min(len - 1, Math.max(0, (int) Math.ceil(p / 100.0 * len) - 1));
+    }
+
+    private boolean deliverable(SimNode from, SimNode to) {
+        if (to.crashed) return false;
+        if (now >= partitionStart && now < partitionEnd && side(from) != side(to)) {
+            packetsLost++;
+            return false;
+        }
+        if (loss > 0 && random.nextDouble() < loss) {
+            packetsLost++;
+            return false;
+        }
+        packetsDelivered++;
+        return true;
+    }
+
+    private int side(SimNode node) {
+        return node.index < partitionSize ? 0 : 1;
+    }
+
+    private long delay() {
+        return latencyMs + (jitterMs > 0 ? random.nextLong(jitterMs + 1) : 0);
+    }
+
+    private void schedule(long at, Runnable action) {
+        queue.add(new Event(at, order++, action));
+    }
+
+    // 10.x.y.z, one address per node
+    private static int ipv4(int index) {
+        return (10 << 24) | (index + 1);
+    }
+
+    private static int ipv4(InetAddress addr) {
+        return InetAddressInfo.ipv4(addr);
+    }
+
+    private static byte[] bytes(int ip) {
+        return new byte[] {(byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip};
+    }
+
+    private static NodeCore.Config copy(NodeCore.Config c) {
+        NodeCore.Config r = new NodeCore.Config();
+        r.swim = c.swim;
+        r.heartbeatIntervalMs = c.heartbeatIntervalMs;
+        r.failureTimeoutMs = c.failureTimeoutMs;
+        r.tickMs = c.tickMs;
+        r.phiThreshold = c.phiThreshold;
+        r.phiMinStdMs = c.phiMinStdMs;
+        r.arrivalWindow = c.arrivalWindow;
+        r.evictAfterMs = c.evictAfterMs;
+        r.bandwidthBudget = c.bandwidthBudget;
+        r.maxHeartbeatIntervalMs = c.maxHeartbeatIntervalMs;
+        return r;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: java ClusterSimulator <nodes> [--mode multicast|swim] [--duration s] [--loss p] [--latency ms] [--jitter ms]"
+                    + " [--kill N] [--kill-at s] [--partition start_s:length_s:fraction] [--phi threshold] [--window N] [--budget bytes/s] [--seed n]");
+            return;
+        }
+
+        int n = Integer.parseInt(args[0]);
+        NodeCore.Config config = new NodeCore.Config();
+        config.arrivalWindow = 16; // a thousand nodes track a million peers between them
+        long durationS = 60;
+        double loss = 0;
+        long latencyMs = 1, jitterMs = 0;
+        int kill = 0;
+        long killAtS = -1;
+        String partition = null;
+        long seed = 1;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--mode" -> config.swim = args[++i].equals("swim");
+                case "--duration" -> durationS = Long.parseLong(args[++i]);
+                case "--loss" -> loss = Double.parseDouble(args[++i]);
+                case "--latency" -> latencyMs = Long.parseLong(args[++i]);
+                case "--jitter" -> jitterMs = Long.parseLong(args[++i]);
+                case "--kill" -> kill = Integer.parseInt(args[++i]);
+                case "--kill-at" -> killAtS = Long.parseLong(args[++i]);
+                case "--partition" -> partition = args[++i];
+                case "--phi" -> config.phiThreshold = Double.parseDouble(args[++i]);
+                case "--window" -> config.arrivalWindow = Integer.parseInt(args[++i]);
+                case "--budget" -> config.bandwidthBudget = Long.parseLong(args[++i]);
+                case "--seed" -> seed = Long.parseLong(args[++i]);
+                default -> {
+                    System.out.println("Unknown option: " + args[i]);
+                    return;
+                }
+            }
+        }
+
+        long wall = System.nanoTime();
+        ClusterSimulator sim = new ClusterSimulator(n, config, loss, latencyMs, jitterMs, seed);
+        if (kill > 0) sim.killAt((killAtS >= 0 ? killAtS : durationS / 2) * 1000, kill);
+        if (partition != null) {
+            String[] p = partition.split(":");
+            sim.partition(Long.parseLong(p[0]) * 1000, Long.parseLong(p[1]) * 1000, Double.parseDouble(p[2]));
+        }
+        sim.run(durationS * 1000);
+        sim.report(durationS * 1000, (System.nanoTime() - wall) / 1_000_000);
+    }
+}
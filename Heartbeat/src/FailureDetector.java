@@ -0,0 +1,205 @@
+/**
+ * Peer deadlines on a hashed timer wheel.
+ *
+ * A heartbeat moves the peer to the slot of its new deadline in O(1); a tick
+ * only visits the slots that came due since the previous tick, so its cost is
+ * the number of expired peers, not the size of the cluster. Dead peers leave
+ * the wheel until they beat again, and each ALIVE/DEAD transition is reported
+ * exactly once.
+ *
+ * With a phi threshold the deadline adapts to each peer (phi accrual): the
+ * recent inter-arrival times give a mean and deviation, phi is how unlikely
+ * the current silence is under that distribution, and the deadline is the
+ * moment phi reaches the threshold. Until a peer has a few samples, and
+ * without a threshold, the fixed timeout is used.
+ */
+public class FailureDetector {
+    public interface Listener {
+        void alive(int id, boolean firstSeen);
+        void dead(int id, long silentMs);
+    }
+
+    private static final int MIN_SAMPLES = 3;
+
+    private static final class Peer {
+        final int id;
+        final ArrivalWindow arrivals;
+        long lastSeen;
+        long deadline;
+        boolean alive;
+        Peer prev, next; // links inside the wheel slot, null while dead
+
+        Peer(int id, int window) {
+            this.id = id;
+            this.arrivals = new ArrivalWindow(window);
+        }
+    }
+
+    private long timeoutMs;
+    private final double phiThreshold;
+    private final double phiDeviations;  // how many deviations past the mean phi hits the threshold
+    private final long minStdMs;
+    private final int window;
+    private final long tickMs;
+    private final Peer[] slots;    // sentinel heads of circular lists
+    private final int mask;
+    private final IntMap<Peer> peers = new IntMap<>();
+    private final Listener listener;
+    private long doneTick;         // every tick up to this one has been expired
+
+    public FailureDetector(long timeoutMs, long tickMs, long now, Listener listener) {
+        this(timeoutMs, 0, 0, 100, tickMs, now, listener);
+    }
+
+    /**
+     * A {@code phiThreshold} of 0 keeps the fixed timeout; {@code minStdMs} stops a very regular
+     * peer from looking dead after a few ms of jitter; {@code window} inter-arrival times are kept per peer.
+     */
+    public FailureDetector(long timeoutMs, double phiThreshold, long minStdMs, int window, long tickMs, long now, Listener listener) {
+        if (phiThreshold != 0 && phiThreshold <= Math.log10(2)) {
+            // phi is already log10(2) at the mean, a lower threshold would expire every peer early
+            throw new IllegalArgumentException("phi threshold must be above " + Math.log10(2) + ", got " + phiThreshold);
+        }
+        this.timeoutMs = timeoutMs;
+        this.phiThreshold = phiThreshold;
+        this.phiDeviations = phiThreshold == 0 ? 0 : deviationsFor(phiThreshold);
+        this.minStdMs = Math.max(1, minStdMs);
+        this.window = window;
+        this.tickMs = tickMs;
+        this.listener = listener;
+        // twice the timeout, so a live deadline never wraps onto a slot that is due sooner
+        int n = Integer.highestOneBit((int) Math.max(2, 2 * timeoutMs / tickMs) - 1) << 1;
+        this.slots = new Peer[n];
+        this.mask = n - 1;
+        for (int i = 0; i < n; i++) {
+            Peer head = new Peer(-1, 0);
+            head.prev = head.next = head;
+            slots[i] = head;
+        }
+        this.doneTick = now / tickMs - 1;
+    }
+
+    public synchronized void heartbeat(int id, long now) {
+        Peer p = peers.get(id);
+        boolean first = p == null;
+        if (first) {
+            p = new Peer(id, window);
+            peers.put(id, p);
+        }
+        p.lastSeen = now;
+        p.arrivals.arrived(now);
+        p.deadline = now + timeoutFor(p);
+        unlink(p);
+        link(p, slots[(int) (p.deadline / tickMs) & mask]);
+
+        if (!p.alive) {
+            p.alive = true;
+            listener.alive(id, first);
+        }
+    }
+
+    /** Declares DEAD every live peer whose deadline passed before the current tick. */
+    public synchronized void tick(long now) {
+        long due = now / tickMs - 1;
+        if (due <= doneTick) return;
+        // after a long pause every slot is due, but each one needs visiting once only
+        long from = Math.max(doneTick + 1, due - mask);
+        for (long t = from; t <= due; t++) {
+            Peer head = slots[(int) t & mask];
+            for (Peer p = head.next; p != head; ) {
+                Peer next = p.next;
+                // later rounds of the wheel share the slot; they stay until their turn
+                if (p.deadline <= now) {
+                    unlink(p);
+                    p.alive = false;
+                    listener.dead(p.id, now - p.lastSeen);
+                }
+                p = next;
+            }
+        }
+        doneTick = due;
+    }
+
+    /** Changes the fixed timeout; a peer's deadline only moves with its next heartbeat. */
+    public synchronized void setTimeoutMs(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+    }
+
+    /** Stops tracking a peer altogether, e.g. once it was evicted from the directory. */
+    public synchronized void forget(int id) {
+        Peer p = peers.remove(id);
+        if (p != null) unlink(p);
+    }
+
+    public synchronized boolean isAlive(int id) {
+        Peer p = peers.get(id);
+        return p != null && p.alive;
+    }
+
+    /** Suspicion level of a peer right now: 0 until it has enough samples, NaN if never seen. */
+    public synchronized double phi(int id, long now) {
+        Peer p = peers.get(id);
+        if (p == null) return Double.NaN;
+        ArrivalWindow w = p.arrivals;
+        if (w.count() < MIN_SAMPLES) return 0;
+        return phi(now - w.last(), w.mean(), Math.max(w.stddev(), minStdMs));
+    }
+
+    /** Silence after the last beat that this peer is currently allowed. */
+    public synchronized long timeoutMs(int id) {
+        Peer p = peers.get(id);
+        return p == null ? timeoutMs : timeoutFor(p);
+    }
+
+    public double phiThreshold() {
+        return phiThreshold;
+    }
+
+    private long timeoutFor(Peer p) {
+        ArrivalWindow w = p.arrivals;
+        if (phiThreshold == 0 || w.count() < MIN_SAMPLES) return timeoutMs;
+        return (long) Math.ceil(w.mean() + phiDeviations * Math.max(w.stddev(), minStdMs));
+    }
+
+    /**
+     * -log10 of the probability that a heartbeat comes later than {@code delta},
+     * with the normal CDF replaced by its logistic approximation.
+     */
+    static double phi(double delta, double mean, double std) {
+        double y = (delta - mean) / std;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        return delta > mean ? -Math.log10(e / (1 + e)) : -Math.log10(1 - 1 / (1 + e));
+    }
+
+    // Inverse of phi in deviations: solves 0.070566 y^3 + 1.5976 y = -ln(e) by Newton's method
+    private static double deviationsFor(double threshold) {
+        double p = Math.pow(10, -threshold);
+        double c = -Math.log(p / (1 - p));
+        double y = c / 1.5976;  // above the root, the cubic term only adds
+        for (int i = 0; i < 50; i++) {
+            double g = 0.070566 * y * y * y + 1.5976 * y - c;
+            double step = g / (3 * 0.070566 * y * y + 1.5976);
+            y -= step;
+            if (Math.abs(step) < 1e-9) break;
+        }
+        return y;
+    }
+
+    public long tickMs() {
+        return tickMs;
+    }
+
+    private static void link(Peer p, Peer head) {
+        p.prev = head.prev;
+        p.next = head;
+        head.prev.next = p;
+        head.prev = p;
+    }
+
+    private static void unlink(Peer p) {
+        if (p.next == null) return;
+        p.prev.next = p.next;
+        p.next.prev = p.prev;
+        p.prev = p.next = null;
+    }
+}
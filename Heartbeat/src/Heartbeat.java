@@ -1,21 +1,74 @@
+import java.nio.file.Path;
+
 public class Heartbeat {
     public static void main(String[] args) throws Exception
     {
         if (args.length < 3) {
-            System.out.println("Usage: java Heartbeat <myId> <unicastPort> <mcastIp> [mcastPort]");
+            System.out.println("Usage: java Heartbeat <myId> <unicastPort> <mcastIp> [mcastPort] [--mode multicast|swim] [--phi threshold] [--evict-after ms] [--batch-ms ms] [--budget bytes/s] [--loop] [--stats-file path] [--stats-every s]");
             System.exit(1);
         }
 
         int myId = Integer.parseInt(args[0]);
         int unicastPort = Integer.parseInt(args[1]);
         String mcastIp = args[2];
-        int mcastPort = (args.length >= 4) ? Integer.parseInt(args[3]) : 5000;
+        int mcastPort = 5000;
+        int firstOption = 3;
+        if (args.length >= 4 && !args[3].startsWith("--")) {
+            mcastPort = Integer.parseInt(args[3]);
+            firstOption = 4;
+        }
+
+        String mode = "multicast";
+        NodeCore.Config config = new NodeCore.Config();
+        long batchMs = 2;
+        boolean eventLoop = false;
+        String statsFile = null;
+        long statsEveryS = 10;
+        for (int i = firstOption; i < args.length; i++) {
+            switch (args[i]) {
+                case "--mode" -> mode = args[++i];
+                case "--phi" -> config.phiThreshold = Double.parseDouble(args[++i]);
+                case "--evict-after" -> config.evictAfterMs = Long.parseLong(args[++i]);
+                case "--batch-ms" -> batchMs = Long.parseLong(args[++i]);
+                case "--budget" -> config.bandwidthBudget = Long.parseLong(args[++i]);
+                case "--loop" -> eventLoop = true;
+                case "--stats-file" -> statsFile = args[++i];
+                case "--stats-every" -> statsEveryS = Long.parseLong(args[++i]);
+                default -> {
+                    System.out.println("Unknown option: " + args[i]);
+                    System.exit(1);
+                }
+            }
+        }
 
-        Node node = new Node(myId, unicastPort, mcastIp, mcastPort);
+        switch (mode) {
+            case "multicast" -> config.swim = false;
+            case "swim" -> config.swim = true;
+            default -> {
+                System.out.println("Unknown mode: " + mode);
+                System.exit(1);
+            }
+        }
+
+        Node node = new Node(myId, unicastPort, mcastIp, mcastPort, config, batchMs);
+        if (statsFile != null) node.writeStatsTo(Path.of(statsFile), statsEveryS * 1000);
+        if (eventLoop) {
+            // everything but the console on this thread; the console only once there is a loop to hand commands to
+            node.openEventLoop();
+            node.startConsole();
+            node.runEventLoop();
+            return;
+        }
         node.startMulticastReceiver();
+        node.startStatsWriter();
         node.startUnicastReceiver();
-        node.startHeartbeatSender();
-        node.startFailureDetector();
+        node.startReliableSender();
+        if (config.swim) {
+            node.startSwim();
+        } else {
+            node.startHeartbeatSender();
+            node.startFailureDetector();
+        }
         node.startConsole();
     }
 }
@@ -0,0 +1,75 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed-layout binary heartbeat, big endian:
+ *
+ *   0  short magic 'H' 'B'
+ *   2  byte  version
+ *   3  byte  type
+ *   4  int   node id
+ *   8  int   incarnation (boot time in seconds)
+ *  12  long  sender clock, ms
+ *  20  int   unicast IPv4, 0 if the sender has none and the source address should be used
+ *  24  short unicast port
+ *
+ * Later versions may only append fields, so a reader accepts any version at
+ * or above its own as long as the fixed part is there. Encoding writes into
+ * a caller's buffer and decoding reads into a reused {@link Beat}; neither
+ * allocates, and a malformed datagram is reported as false, never thrown.
+ */
+public class HeartbeatCodec {
+    public static final short MAGIC = 0x4842;
+    public static final byte VERSION = 1;
+    public static final byte TYPE_HEARTBEAT = 1;
+    public static final int LENGTH = 26;
+
+    private static final int VERSION_AT = 2;
+    private static final int TYPE_AT = 3;
+    private static final int ID_AT = 4;
+    private static final int INCARNATION_AT = 8;
+    private static final int CLOCK_AT = 12;
+    private static final int IP_AT = 20;
+    private static final int PORT_AT = 24;
+
+    /** A decoded heartbeat, meant to be reused by a single receiver thread. */
+    public static final class Beat {
+        public int id;
+        public int incarnation;
+        public long clock;
+        public int ipv4;
+        public int port;
+    }
+
+    private HeartbeatCodec() {}
+
+    /** Writes a complete heartbeat at the start of {@code buf}. */
+    public static void encode(ByteBuffer buf, int id, int incarnation, long clock, int ipv4, int port) {
+        buf.putShort(0, MAGIC)
+                .put(VERSION_AT, VERSION)
+                .put(TYPE_AT, TYPE_HEARTBEAT)
+                .putInt(ID_AT, id)
+                .putInt(INCARNATION_AT, incarnation)
+                .putLong(CLOCK_AT, clock)
+                .putInt(IP_AT, ipv4)
+                .putShort(PORT_AT, (short) port);
+    }
+
+    /** True if the first {@code len} bytes of {@code buf} start like a heartbeat of any version. */
+    public static boolean isHeartbeat(ByteBuffer buf, int len) {
+        return len >= 2 && buf.getShort(0) == MAGIC;
+    }
+
+    /** Fills {@code out} from the first {@code len} bytes of {@code buf}; false if they are not a usable heartbeat. */
+    public static boolean decode(ByteBuffer buf, int len, Beat out) {
+        if (len < LENGTH || buf.capacity() < LENGTH) return false;
+        if (buf.getShort(0) != MAGIC || buf.get(VERSION_AT) < VERSION || buf.get(TYPE_AT) != TYPE_HEARTBEAT) return false;
+        int port = buf.getShort(PORT_AT) & 0xFFFF;
+        if (port == 0) return false;
+        out.id = buf.getInt(ID_AT);
+        out.incarnation = buf.getInt(INCARNATION_AT);
+        out.clock = buf.getLong(CLOCK_AT);
+        out.ipv4 = buf.getInt(IP_AT);
+        out.port = port;
+        return true;
+    }
+}
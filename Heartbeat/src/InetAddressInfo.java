@@ -1,12 +1,104 @@
+import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.Enumeration;
 
+/**
+ * The local address, resolved once. A cheap fingerprint of the interface
+ * addresses is compared at most every few seconds and the address is only
+ * looked up again when it changes, so callers can ask on every heartbeat.
+ */
 public class InetAddressInfo {
+    private static final long CHECK_INTERVAL_MS = 5000;
+
+    private static volatile String myIp;
+    private static volatile int myIpv4;
+    private static long fingerprint;
+    private static long lastCheck;
+
+    static {
+        refresh();
+        fingerprint = interfacesFingerprint();
+        lastCheck = System.currentTimeMillis();
+    }
+
     public static String getMyIp() {
+        checkInterfaces();
+        return myIp;
+    }
+
+    /** The local address as a packed IPv4, 0 if it is not IPv4. */
+    public static int getMyIpv4() {
+        checkInterfaces();
+        return myIpv4;
+    }
+
+    /** Where to join multicast groups: the interface of the local address, else the first one up that can. */
+    public static NetworkInterface multicastInterface() throws SocketException {
+        try {
+            NetworkInterface nif = NetworkInterface.getByInetAddress(InetAddress.getLocalHost());
+            if (nif != null && nif.isUp() && nif.supportsMulticast()) return nif;
+        } catch (UnknownHostException ignored) {}
+        NetworkInterface loopback = null;
+        Enumeration<NetworkInterface> nifs = NetworkInterface.getNetworkInterfaces();
+        while (nifs != null && nifs.hasMoreElements()) {
+            NetworkInterface nif = nifs.nextElement();
+            if (!nif.isUp()) continue;
+            if (nif.isLoopback()) loopback = nif;
+            else if (nif.supportsMulticast()) return nif;
+        }
+        if (loopback != null) return loopback;
+        throw new SocketException("no network interface for multicast");
+    }
+
+    public static String ipString(int ipv4) {
+        return ((ipv4 >>> 24) & 0xFF) + "." + ((ipv4 >>> 16) & 0xFF) + "." + ((ipv4 >>> 8) & 0xFF) + "." + (ipv4 & 0xFF);
+    }
+
+    public static int ipv4(InetAddress addr) {
+        if (!(addr instanceof Inet4Address)) return 0;
+        byte[] b = addr.getAddress();
+        return ((b[0] & 0xFF) << 24) | ((b[1] & 0xFF) << 16) | ((b[2] & 0xFF) << 8) | (b[3] & 0xFF);
+    }
+
+    private static synchronized void checkInterfaces() {
+        long now = System.currentTimeMillis();
+        if (now - lastCheck < CHECK_INTERVAL_MS) return;
+        lastCheck = now;
+        long current = interfacesFingerprint();
+        if (current != fingerprint) {
+            fingerprint = current;
+            refresh();
+        }
+    }
+
+    private static void refresh() {
         try {
-            return InetAddress.getLocalHost().getHostAddress();
+            InetAddress local = InetAddress.getLocalHost();
+            myIp = local.getHostAddress();
+            myIpv4 = ipv4(local);
         } catch (UnknownHostException e) {
-            return "0.0.0.0";
+            myIp = "0.0.0.0";
+            myIpv4 = 0;
         }
     }
+
+    // Order-independent hash of every address on every interface that is up
+    private static long interfacesFingerprint() {
+        long h = 0;
+        try {
+            Enumeration<NetworkInterface> nifs = NetworkInterface.getNetworkInterfaces();
+            while (nifs != null && nifs.hasMoreElements()) {
+                NetworkInterface nif = nifs.nextElement();
+                if (!nif.isUp()) continue;
+                Enumeration<InetAddress> addrs = nif.getInetAddresses();
+                while (addrs.hasMoreElements()) {
+                    h += addrs.nextElement().hashCode() * 0x9E3779B97F4A7C15L;
+                }
+            }
+        } catch (SocketException ignored) {}
+        return h;
+    }
 }
@@ -0,0 +1,107 @@
+import java.util.Arrays;
+
+/**
+ * Map from int to long with open addressing, see {@link IntMap}: the values
+ * are stored unboxed, so updating one allocates nothing. Not thread-safe.
+ * Integer.MIN_VALUE cannot be a key.
+ */
+public class IntLongMap {
+    private static final int FREE = IntMap.FREE;
+
+    public interface Visitor {
+        void visit(int key, long value);
+    }
+
+    private int[] keys;
+    private long[] values;
+    private int mask;
+    private int size;
+
+    public IntLongMap() {
+        allocate(16);
+    }
+
+    /** The value of {@code key}, or {@code missing} if there is none. */
+    public long get(int key, long missing) {
+        int i = find(key);
+        return i < 0 ? missing : values[i];
+    }
+
+    public boolean containsKey(int key) {
+        return find(key) >= 0;
+    }
+
+    public void put(int key, long value) {
+        if (key == FREE) throw new IllegalArgumentException("reserved key " + key);
+        int i = slot(key);
+        while (keys[i] != FREE) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size * 2 > keys.length) grow();
+    }
+
+    public boolean remove(int key) {
+        int i = find(key);
+        if (i < 0) return false;
+        int hole = i;
+        for (int j = (i + 1) & mask; keys[j] != FREE; j = (j + 1) & mask) {
+            int home = slot(keys[j]);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        keys[hole] = FREE;
+        size--;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void forEach(Visitor visitor) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != FREE) visitor.visit(keys[i], values[i]);
+        }
+    }
+
+    private int find(int key) {
+        for (int i = slot(key); keys[i] != FREE; i = (i + 1) & mask) {
+            if (keys[i] == key) return i;
+        }
+        return -1;
+    }
+
+    private int slot(int key) {
+        int h = key * 0x9E3779B9;
+        return (h ^ h >>> 16) & mask;
+    }
+
+    private void allocate(int n) {
+        keys = new int[n];
+        Arrays.fill(keys, FREE);
+        values = new long[n];
+        mask = n - 1;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        long[] oldValues = values;
+        allocate(keys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == FREE) continue;
+            int j = slot(oldKeys[i]);
+            while (keys[j] != FREE) j = (j + 1) & mask;
+            keys[j] = oldKeys[i];
+            values[j] = oldValues[i];
+        }
+    }
+}
@@ -0,0 +1,117 @@
+import java.util.Arrays;
+
+/**
+ * Map from int to object with open addressing, for the per-peer tables on the
+ * heartbeat path: a lookup neither boxes the id nor allocates an entry.
+ * Not thread-safe. Integer.MIN_VALUE marks free slots and cannot be a key.
+ */
+public class IntMap<V> {
+    static final int FREE = Integer.MIN_VALUE;
+
+    public interface Visitor<V> {
+        void visit(int key, V value);
+    }
+
+    private int[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+
+    public IntMap() {
+        this(16);
+    }
+
+    public IntMap(int expected) {
+        int n = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+        allocate(n);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int i = find(key);
+        return i < 0 ? null : (V) values[i];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if (key == FREE) throw new IllegalArgumentException("reserved key " + key);
+        int i = slot(key);
+        while (keys[i] != FREE) {
+            if (keys[i] == key) {
+                V old = (V) values[i];
+                values[i] = value;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        // at most half full keeps the probe runs short
+        if (++size * 2 > keys.length) grow();
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int i = find(key);
+        if (i < 0) return null;
+        V old = (V) values[i];
+        // backward shift: pull later entries of the run into the hole, no tombstones
+        int hole = i;
+        for (int j = (i + 1) & mask; keys[j] != FREE; j = (j + 1) & mask) {
+            int home = slot(keys[j]);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        keys[hole] = FREE;
+        values[hole] = null;
+        size--;
+        return old;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(Visitor<V> visitor) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != FREE) visitor.visit(keys[i], (V) values[i]);
+        }
+    }
+
+    private int find(int key) {
+        for (int i = slot(key); keys[i] != FREE; i = (i + 1) & mask) {
+            if (keys[i] == key) return i;
+        }
+        return -1;
+    }
+
+    private int slot(int key) {
+        int h = key * 0x9E3779B9;
+        return (h ^ h >>> 16) & mask;
+    }
+
+    private void allocate(int n) {
+        keys = new int[n];
+        Arrays.fill(keys, FREE);
+        values = new Object[n];
+        mask = n - 1;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(keys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == FREE) continue;
+            int j = slot(oldKeys[i]);
+            while (keys[j] != FREE) j = (j + 1) & mask;
+            keys[j] = oldKeys[i];
+            values[j] = oldValues[i];
+        }
+    }
+}
@@ -1,27 +1,49 @@
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.charset.StandardCharsets;
-import java.util.Map;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Scanner;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 public class Node {
+    // datagrams taken from one channel before the loop looks at its timers again
+    private static final int MAX_READS_PER_WAKEUP = 64;
+
     private final int myId;
     private final int unicastPort;
-    private final DatagramSocket unicastSocket;
+    private final DatagramChannel unicastChannel;
 
     private final InetAddress mcastGroup;
     private final int mcastPort;
-    private final MulticastSocket mcastSocket;
+    private final InetSocketAddress mcastTarget;
+    private final DatagramChannel mcastChannel;
+    private final MembershipKey mcastMembership;
 
     private final AtomicBoolean running = new AtomicBoolean(true);
 
-    // <peerId, lastSeenMs>
-    private final Map<Integer, Long> lastHeartbeat = new ConcurrentHashMap<>();
+    // Event-loop mode only: the loop's selector, console commands waiting for the loop
+    private volatile Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> loopTasks = new ConcurrentLinkedQueue<>();
+    private boolean reliableDue;
+
+    // one JSON line of NodeStats per period, when set
+    private Path statsFile;
+    private long statsEveryMs;
 
-    private static final long HEARTBEAT_INTERVAL_MS = 1000;
-    private static final long FAILURE_TIMEOUT_MS = 5000;
+    // Membership decisions; this class only adds sockets, threads and the console
+    private final NodeCore core;
+    // msg traffic: acked, retransmitted, several messages per datagram
+    private final ReliableUnicast reliable;
+    private volatile Thread reliableSender;
 
 //    public Node(int myId,
 //                         int unicastPort,
@@ -43,59 +65,140 @@ public class Node {
                 int unicastPort,
                 String mcastIp,
                 int mcastPort) throws IOException {
+        this(myId, unicastPort, mcastIp, mcastPort, new NodeCore.Config(), 2);
+    }
+
+    public Node(int myId,
+                int unicastPort,
+                String mcastIp,
+                int mcastPort,
+                NodeCore.Config config,
+                long batchMs) throws IOException {
 
         this.myId = myId;
         this.unicastPort = unicastPort;
-        this.unicastSocket = new DatagramSocket(unicastPort);
+        this.unicastChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+        this.unicastChannel.bind(new InetSocketAddress(unicastPort));
 
         this.mcastPort = mcastPort;
         this.mcastGroup = InetAddress.getByName(mcastIp);
-        this.mcastSocket = new MulticastSocket(mcastPort);
-        this.mcastSocket.setReuseAddress(true);
+        this.mcastTarget = new InetSocketAddress(mcastGroup, mcastPort);
+        // channels, blocking for the receiver threads or non-blocking under one selector
+        NetworkInterface nif = InetAddressInfo.multicastInterface();
+        this.mcastChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+        this.mcastChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        this.mcastChannel.bind(new InetSocketAddress(mcastPort));
+        this.mcastChannel.setOption(StandardSocketOptions.IP_MULTICAST_IF, nif);
+        this.mcastMembership = mcastChannel.join(mcastGroup, nif);
+
+        NodeCore.Transport transport = new NodeCore.Transport() {
+            @Override
+            public void multicast(byte[] data, int len) {
+                NodeStats.SocketCounters counters = core.stats().multicast;
+                try {
+                    if (mcastChannel.send(ByteBuffer.wrap(data, 0, len), mcastTarget) > 0) counters.sent(len);
+                    else counters.sendError();
+                } catch (IOException e) {
+                    counters.sendError();
+                    System.err.println("[ERR] sendMulticast: " + e.getMessage());
+                }
+            }
+
+            @Override
+            public void unicast(InetSocketAddress to, byte[] data, int len) {
+                NodeStats.SocketCounters counters = core.stats().unicast;
+                try {
+                    if (unicastChannel.send(ByteBuffer.wrap(data, 0, len), to) > 0) counters.sent(len);
+                    else counters.sendError();
+                } catch (IOException e) {
+                    counters.sendError();
+                    System.err.println("[ERR] sendUnicastMsg: " + e.getMessage());
+                }
+            }
+        };
+        NodeCore.Events events = new NodeCore.Events() {
+            @Override
+            public void alive(int id, boolean firstSeen) {
+                System.out.println("[INFO] Node " + id + (firstSeen ? " joined" : " is ALIVE again"));
+            }
 
-        // varianta simplă și portabilă:
-        this.mcastSocket.joinGroup(mcastGroup);
+            @Override
+            public void dead(int id, long silentMs) {
+                System.out.println("[ALERT] Node " + id + " considered DEAD (" + silentMs + " ms no heartbeat)");
+            }
 
-        lastHeartbeat.put(myId, System.currentTimeMillis());
+            @Override
+            public void evicted(int id) {
+                System.out.println("[INFO] Node " + id + " evicted, dead for over the grace period");
+                reliable.forget(id);
+            }
+        };
+        this.core = new NodeCore(myId, unicastPort, InetAddressInfo.getMyIp(), InetAddressInfo::getMyIpv4,
+                config, transport, System::currentTimeMillis, events);
+
+        this.reliable = new ReliableUnicast(myId, batchMs, (toId, datagram) -> {
+            NodeContact contact = core.directory().get(toId);
+            if (contact == null) return false;
+            core.sendUnicast(contact.address, datagram);
+            return true;
+        }, new ReliableUnicast.Listener() {
+            @Override
+            public void delivered(int fromId, String text) {
+                System.out.println("[MSG] from #" + fromId + ": " + text);
+            }
+
+            @Override
+            public void undelivered(int toId, int count) {
+                System.out.println("[WARN] " + count + " message(s) to node " + toId + " were never acknowledged, dropped");
+            }
+        });
+    }
+
+    /** Current suspicion level of a peer, see {@link FailureDetector#phi}. */
+    public double phi(int peerId) {
+        return core.phi(peerId);
     }
 
     public void sendMulticast(String msg) {
-        try {
-            byte[] data = msg.getBytes(StandardCharsets.UTF_8);
-            DatagramPacket packet = new DatagramPacket(data, data.length, mcastGroup, mcastPort);
-            mcastSocket.send(packet);
-        } catch (IOException e) {
-            System.err.println("[ERR] sendMulticast: " + e.getMessage());
-        }
+        core.sendMulticast(msg);
     }
 
-    public void sendUnicastMsg(String ip, int port, String msg) {
-        try {
-            byte[] data = msg.getBytes(StandardCharsets.UTF_8);
-            DatagramPacket packet = new DatagramPacket(data, data.length,
-                    InetAddress.getByName(ip), port);
-            unicastSocket.send(packet);
-        } catch (IOException e) {
-            System.err.println("[ERR] sendUnicastMsg: " + e.getMessage());
+    public void sendUnicastMsg(InetSocketAddress to, String msg) {
+        core.sendUnicast(to, msg);
+    }
+
+    /** Queues a message for {@code toId}; it leaves with the next batch and is retransmitted until acked. */
+    public boolean sendReliable(int toId, String text) {
+        boolean queued = reliable.send(toId, text, System.currentTimeMillis());
+        if (queued) wakeReliableSender();
+        return queued;
+    }
+
+    private void wakeReliableSender() {
+        if (selector != null) {
+            // event loop: we are on it, it flushes before it waits again
+            reliableDue = true;
+            return;
         }
+        Thread t = reliableSender;
+        if (t != null) LockSupport.unpark(t);
     }
 
     public void startMulticastReceiver() {
         Thread t = new Thread(() -> {
-            byte[] buf = new byte[2048];
+            ByteBuffer buf = ByteBuffer.allocate(2048);
             while (running.get()) {
-                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                buf.clear();
+                SocketAddress from;
                 try {
-                    mcastSocket.receive(packet);
-                    String data = new String(packet.getData(), packet.getOffset(),
-                            packet.getLength(), StandardCharsets.UTF_8).trim();
-                    handleMulticastPacket(data);
+                    from = mcastChannel.receive(buf);
                 } catch (IOException e) {
                     if (running.get()) {
                         System.err.println("[ERR] mcast recv: " + e.getMessage());
                     }
                     break;
                 }
+                onMulticast(buf, from);
             }
         }, "MulticastReceiver");
         t.start();
@@ -103,31 +206,171 @@ public class Node {
 
     public void startUnicastReceiver() {
         Thread t = new Thread(() -> {
-            byte[] buf = new byte[2048];
+            ByteBuffer buf = ByteBuffer.allocate(2048);
             while (running.get()) {
-                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                buf.clear();
+                SocketAddress from;
                 try {
-                    unicastSocket.receive(packet);
-                    String data = new String(packet.getData(), packet.getOffset(),
-                            packet.getLength(), StandardCharsets.UTF_8).trim();
-                    handleUnicastPacket(data);
+                    from = unicastChannel.receive(buf);
                 } catch (IOException e) {
                     if (running.get()) {
                         System.err.println("[ERR] unicast recv: " + e.getMessage());
                     }
                     break;
                 }
+                onUnicast(buf, from);
             }
         }, "UnicastReceiver");
         t.start();
     }
 
+    private void onMulticast(ByteBuffer buf, SocketAddress from) {
+        NodeStats.SocketCounters counters = core.stats().multicast;
+        counters.received(buf.position());
+        try {
+            core.receiveMulticast(buf, buf.position(), ((InetSocketAddress) from).getAddress());
+        } catch (RuntimeException e) {
+            // a bad datagram must not take the receiver down
+            counters.decodeError();
+            System.err.println("[WARN] dropped multicast packet from " + from + ": " + e);
+        }
+    }
+
+    private void onUnicast(ByteBuffer buf, SocketAddress from) {
+        NodeStats.SocketCounters counters = core.stats().unicast;
+        counters.received(buf.position());
+        try {
+            handleUnicastPacket(new String(buf.array(), 0, buf.position(), StandardCharsets.UTF_8));
+        } catch (RuntimeException e) {
+            counters.decodeError();
+            System.err.println("[WARN] dropped unicast packet from " + from + ": " + e);
+        }
+    }
+
+    /** Appends a line of stats to {@code file} every {@code everyMs}; set before the node starts. */
+    public void writeStatsTo(Path file, long everyMs) {
+        this.statsFile = file;
+        this.statsEveryMs = everyMs;
+    }
+
+    public void startStatsWriter() {
+        if (statsFile == null) return;
+        Thread t = new Thread(() -> {
+            while (running.get()) {
+                try { Thread.sleep(statsEveryMs); } catch (InterruptedException ignored) {}
+                if (running.get()) writeStats();
+            }
+        }, "StatsWriter");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void writeStats() {
+        StringBuilder line = new StringBuilder(1024);
+        core.appendStatsJson(line);
+        line.append('\n');
+        try {
+            Files.writeString(statsFile, line, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.err.println("[ERR] stats file " + statsFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Event-loop mode, instead of the receiver, heartbeat, detector, SWIM and
+     * reliable-sender threads: both channels share one selector, and the
+     * time-driven work runs on the same thread whenever it falls due, so all
+     * membership state is touched by this thread only. The console keeps a
+     * thread of its own (System.in cannot be selected) and hands its
+     * commands over; start it after openEventLoop(), or its first commands
+     * run on its own thread. Returns once the node is shut down.
+     */
+    public void runEventLoop() throws IOException {
+        if (selector == null) openEventLoop();
+        Selector sel = selector;
+
+        ByteBuffer buf = ByteBuffer.allocate(2048);
+        long nextTick = 0;
+        long nextFlush = 0;
+        long nextStats = statsFile != null ? System.currentTimeMillis() + statsEveryMs : Long.MAX_VALUE;
+        try {
+            while (running.get()) {
+                Runnable task;
+                while ((task = loopTasks.poll()) != null) task.run();
+
+                long now = System.currentTimeMillis();
+                if (now >= nextTick) nextTick = core.tick();
+                if (reliableDue || now >= nextFlush) {
+                    reliableDue = false;
+                    nextFlush = reliable.flush(now);
+                }
+                if (now >= nextStats) {
+                    writeStats();
+                    nextStats = now + statsEveryMs;
+                }
+
+                long waitMs = Math.min(Math.min(nextTick, nextFlush), nextStats) - System.currentTimeMillis();
+                if (waitMs > 0) sel.select(waitMs);
+                else sel.selectNow();
+
+                for (SelectionKey key : sel.selectedKeys()) {
+                    DatagramChannel ch = (DatagramChannel) key.channel();
+                    for (int i = 0; i < MAX_READS_PER_WAKEUP && running.get(); i++) {
+                        buf.clear();
+                        SocketAddress from = ch.receive(buf);
+                        if (from == null) break;
+                        if (ch == mcastChannel) onMulticast(buf, from);
+                        else onUnicast(buf, from);
+                    }
+                }
+                sel.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            if (running.get()) throw e;
+        } finally {
+            sel.close();
+        }
+    }
+
+    /** Sets up the event loop's selector, so commands are handed to it from now on. */
+    public void openEventLoop() throws IOException {
+        Selector sel = Selector.open();
+        unicastChannel.configureBlocking(false);
+        mcastChannel.configureBlocking(false);
+        unicastChannel.register(sel, SelectionKey.OP_READ);
+        mcastChannel.register(sel, SelectionKey.OP_READ);
+        selector = sel;
+    }
+
+    // Console commands run on the event loop when there is one, right away otherwise
+    private void onLoop(Runnable command) {
+        Selector sel = selector;
+        if (sel == null) {
+            command.run();
+            return;
+        }
+        loopTasks.add(command);
+        sel.wakeup();
+    }
+
+    /** Sends batches, retransmissions and acks of the reliable messages, sleeping until the next is due. */
+    public void startReliableSender() {
+        Thread t = new Thread(() -> {
+            while (running.get()) {
+                long next = reliable.flush(System.currentTimeMillis());
+                long waitMs = Math.min(next - System.currentTimeMillis(), 1000);
+                if (waitMs > 0) LockSupport.parkNanos(waitMs * 1_000_000);
+            }
+        }, "ReliableSender");
+        reliableSender = t;
+        t.start();
+    }
+
     public void startHeartbeatSender() {
         Thread t = new Thread(() -> {
             while (running.get()) {
-                String payload = "HEARTBEAT;" + myId + ";" + System.currentTimeMillis() + ";" + InetAddressInfo.getMyIp() + ";" + unicastPort;
-                sendMulticast(payload);
-                try { Thread.sleep(HEARTBEAT_INTERVAL_MS); } catch (InterruptedException ignored) {}
+                core.sendHeartbeat();
+                try { Thread.sleep(core.heartbeatIntervalMs()); } catch (InterruptedException ignored) {}
             }
         }, "HeartbeatSender");
         t.start();
@@ -136,27 +379,33 @@ public class Node {
     public void startFailureDetector() {
         Thread t = new Thread(() -> {
             while (running.get()) {
-                long now = System.currentTimeMillis();
-                for (Map.Entry<Integer, Long> e : lastHeartbeat.entrySet()) {
-                    int id = e.getKey();
-                    if (id == myId) continue;
-                    long diff = now - e.getValue();
-                    if (diff > FAILURE_TIMEOUT_MS) {
-                        System.out.println("[ALERT] Node " + id + " considered DEAD (" + diff + " ms no heartbeat)");
-                    }
-                }
-                try { Thread.sleep(1000); } catch (InterruptedException ignored) {}
+                core.checkFailures();
+                try { Thread.sleep(core.config().tickMs); } catch (InterruptedException ignored) {}
             }
         }, "FailureDetector");
         t.start();
     }
 
+    /** SWIM mode (config.swim): replaces the heartbeat sender and the failure detector. */
+    public void startSwim() {
+        Thread t = new Thread(() -> {
+            while (running.get()) {
+                core.swimTick();
+                try { Thread.sleep(core.config().tickMs); } catch (InterruptedException ignored) {}
+            }
+        }, "Swim");
+        t.start();
+    }
+
     public void startConsole() {
         Thread t = new Thread(() -> {
             Scanner sc = new Scanner(System.in);
             System.out.println("Commands:");
             System.out.println(" list     -> show available nodes");
             System.out.println(" msg <id> <txt>  -> send message to node <id>");
+            System.out.println(" phi      -> suspicion level and allowed silence per node (SWIM state in swim mode)");
+            System.out.println(" budget   -> heartbeat interval and bandwidth used");
+            System.out.println(" stats    -> per-peer arrival and detection stats, per-socket traffic");
             System.out.println(" exit     -> close");
             while (running.get()) {
                 System.out.print("cmd> ");
@@ -165,48 +414,50 @@ public class Node {
                 if (line.equals("exit")) {
                     shutdown();
                     break;
-                } else if (line.equals("list")) {
-                    dumpNodes();
-                } else if (line.startsWith("msg ")) {
-                    String[] parts = line.split("\\s+", 3);
-                    if (parts.length < 3) {
-                        System.out.println("Usage: msg <id> <text>");
-                        continue;
-                    }
-                    int destId = Integer.parseInt(parts[1]);
-                    String txt = parts[2];
-
-                    NodeContact contact = NodeDirectory.get(destId);
-                    if (contact == null) {
-                        System.out.println("Not found node #" + destId);
-                    } else {
-                        String payload = "MSG;" + myId + ";" + destId + ";" + txt;
-                        sendUnicastMsg(contact.ip, contact.port, payload);
-                    }
                 }
+                onLoop(() -> runCommand(line));
             }
         }, "Console");
         t.start();
     }
 
-    private void handleMulticastPacket(String data) {
-        // expected HEARTBEAT;id;ts;ip;port
-        String[] parts = data.split(";");
-        if (parts.length >= 5 && parts[0].equals("HEARTBEAT")) {
-            int id = Integer.parseInt(parts[1]);
-            String ip = parts[3];
-            int port = Integer.parseInt(parts[4]);
-
-            lastHeartbeat.put(id, System.currentTimeMillis());
-            NodeDirectory.put(id, ip, port);
+    private void runCommand(String line) {
+        if (line.equals("list")) {
+            dumpNodes();
+        } else if (line.equals("phi")) {
+            dumpPhi();
+        } else if (line.equals("budget")) {
+            core.dumpBudget();
+        } else if (line.equals("stats")) {
+            core.dumpStats();
+            reliable.dump();
+        } else if (line.startsWith("msg ")) {
+            String[] parts = line.split("\\s+", 3);
+            if (parts.length < 3) {
+                System.out.println("Usage: msg <id> <text>");
+                return;
+            }
+            int destId = Integer.parseInt(parts[1]);
+            String txt = parts[2];
 
-//            System.out.println(data);
+            if (core.directory().get(destId) == null) {
+                System.out.println("Not found node #" + destId);
+            } else if (!sendReliable(destId, txt)) {
+                System.out.println("Message too long or too many queued for node #" + destId);
+            }
         }
     }
 
     private void handleUnicastPacket(String data) {
-        // MSG;fromId;toId;text
-        String[] parts = data.split(";", 4);
+        if (core.receiveUnicast(data)) return;
+        if (reliable.receive(data, System.currentTimeMillis())) {
+            // acks may have opened the window, and an ack of our own is now due
+            wakeReliableSender();
+            return;
+        }
+
+        // MSG;fromId;toId;text, plain datagrams of older nodes
+        String[] parts = data.trim().split(";", 4);
         if (parts.length >= 4 && parts[0].equals("MSG")) {
             int toId = Integer.parseInt(parts[2]);
             if (toId == myId) {
@@ -218,8 +469,12 @@ public class Node {
     }
 
     public void dumpNodes() {
-        System.out.println("Current node: " + myId + " unicastPort=" + unicastPort);
-        NodeDirectory.dump();
+        core.dumpNodes();
+        reliable.dump();
+    }
+
+    public void dumpPhi() {
+        core.dumpPhi();
     }
 
 //    public void shutdown() {
@@ -235,10 +490,12 @@ public class Node {
     public void shutdown() {
         if (!running.compareAndSet(true, false)) return;
         System.out.println("Shutting down node " + myId);
+        mcastMembership.drop();
         try {
-            mcastSocket.leaveGroup(mcastGroup);
+            mcastChannel.close();
+            unicastChannel.close();
         } catch (IOException ignored) {}
-        mcastSocket.close();
-        unicastSocket.close();
+        Selector sel = selector;
+        if (sel != null) sel.wakeup();
     }
 }
@@ -1,8 +1,25 @@
+import java.net.InetSocketAddress;
+
+/**
+ * One directory entry. Immutable apart from the DEAD mark: a change of address
+ * or incarnation replaces the whole entry, so senders can hold on to the
+ * resolved {@link #address} without any lookup.
+ */
 public class NodeContact {
+    final int id;
     final String ip;
     final int port;
-    public NodeContact(String ip, int port) {
+    final int ipv4; // 0 if only the text form is known
+    final int incarnation;
+    final InetSocketAddress address;
+    volatile long deadSince; // 0 while the node is considered alive
+
+    public NodeContact(int id, String ip, int port, int ipv4, int incarnation) {
+        this.id = id;
         this.ip = ip;
         this.port = port;
+        this.ipv4 = ipv4;
+        this.incarnation = incarnation;
+        this.address = new InetSocketAddress(ip, port);
     }
-}
\ No newline at end of file
+}
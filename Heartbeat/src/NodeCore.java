@@ -0,0 +1,409 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Everything a node decides about membership, without threads, sockets or a
+ * wall clock of its own: datagrams and the passing of time are fed in, and
+ * datagrams and state changes come out through {@link Transport} and
+ * {@link Events}. {@link Node} drives it from real sockets and threads;
+ * {@link ClusterSimulator} drives thousands of them on a virtual clock.
+ */
+public final class NodeCore {
+    public interface Transport {
+        void multicast(byte[] data, int len);
+        void unicast(InetSocketAddress to, byte[] data, int len);
+    }
+
+    public interface Clock {
+        long millis();
+    }
+
+    public interface Events extends FailureDetector.Listener {
+        void evicted(int id);
+    }
+
+    /** Tunables, defaults are the values a real node uses. */
+    public static class Config {
+        public boolean swim;
+        // with a bandwidth budget: the shortest interval, and the timeout that goes with it
+        public long heartbeatIntervalMs = 1000;
+        public long failureTimeoutMs = 5000;
+        // bytes per second the membership traffic of the whole cluster may use, 0 keeps the interval fixed
+        public long bandwidthBudget;
+        public long maxHeartbeatIntervalMs = 30_000;
+        public long tickMs = 100;
+        public double phiThreshold;
+        public long phiMinStdMs = 100;
+        public int arrivalWindow = 100;
+        public long evictAfterMs = 60_000;
+        public long seed = System.nanoTime();
+    }
+
+    // IPv4 and UDP headers, paid on every datagram
+    private static final int DATAGRAM_OVERHEAD = 28;
+    // periods measured before the interval is sized, and how many recent ones count
+    private static final int MIN_PERIOD_SAMPLES = 3;
+    private static final int PERIOD_SAMPLES = 5;
+
+    private final int myId;
+    private final int unicastPort;
+    private final IntSupplier myIpv4;
+    private final int incarnation;
+    private final Config config;
+    private final Transport transport;
+    private final Clock clock;
+    private final Events events;
+
+    // <peerId, lastSeenMs>, unboxed; locked because the threaded Node writes it from two receivers
+    private final IntLongMap lastHeartbeat = new IntLongMap();
+    // Per-peer regularity and detections; Node adds its socket counters
+    private final NodeStats stats = new NodeStats();
+    // Contacts of this node only, several nodes can live in one JVM
+    private final NodeDirectory directory;
+    // Only peers whose deadline expired are touched per tick, one event per state change
+    private final FailureDetector detector;
+    // Set when membership runs over SWIM instead of multicast heartbeats
+    private final SwimMembership swim;
+
+    // one heartbeat buffer for the node's lifetime, only the clock and address fields change
+    private final ByteBuffer beatOut = ByteBuffer.allocate(HeartbeatCodec.LENGTH);
+    private final HeartbeatCodec.Beat beatIn = new HeartbeatCodec.Beat();
+    private long nextBeat;
+    private long nextJoin;
+
+    // Heartbeat period sized to the bandwidth budget, see adapt()
+    private final LongAdder membershipBytes = new LongAdder();
+    private volatile long intervalMs;
+    private volatile long timeoutMs;
+    private volatile int members = 1;
+    private volatile double bytesPerPeriod = -1;
+    private final double[] periodBytes = new double[PERIOD_SAMPLES];
+    private final double[] sorted = new double[PERIOD_SAMPLES];
+    private int periodCount;
+    private long lastAdapt;
+    private long bytesAtLastAdapt;
+
+    public NodeCore(int myId, int unicastPort, String myIp, IntSupplier myIpv4,
+                    Config config, Transport transport, Clock clock, Events events) {
+        this.myId = myId;
+        this.unicastPort = unicastPort;
+        this.myIpv4 = myIpv4;
+        this.config = config;
+        this.transport = transport;
+        this.clock = clock;
+        this.events = events;
+
+        long now = clock.millis();
+        // boot time in seconds, tells a restarted node apart from its previous life
+        this.incarnation = (int) (now / 1000);
+        this.directory = new NodeDirectory(config.evictAfterMs);
+        heardFrom(myId, now);
+        this.intervalMs = config.heartbeatIntervalMs;
+        this.timeoutMs = config.failureTimeoutMs;
+        this.lastAdapt = now;
+
+        FailureDetector.Listener states = new FailureDetector.Listener() {
+            @Override
+            public void alive(int id, boolean firstSeen) {
+                directory.markAlive(id);
+                stats.alive(id, firstSeen);
+                events.alive(id, firstSeen);
+            }
+
+            @Override
+            public void dead(int id, long silentMs) {
+                directory.markDead(id, clock.millis());
+                stats.dead(id, silentMs);
+                events.dead(id, silentMs);
+            }
+        };
+        this.detector = new FailureDetector(config.failureTimeoutMs, config.phiThreshold, config.phiMinStdMs,
+                config.arrivalWindow, config.tickMs, now, states);
+
+        this.swim = !config.swim ? null : new SwimMembership(myId, incarnation, myIp, unicastPort,
+                config.heartbeatIntervalMs, new Random(config.seed), this::membershipUnicast, new SwimMembership.Listener() {
+                    @Override
+                    public void contact(int id, int inc, String ip, int port) {
+                        directory.update(id, inc, ip, port);
+                    }
+
+                    @Override
+                    public void heard(int id, long at) {
+                        heardFrom(id, at);
+                    }
+
+                    @Override
+                    public void alive(int id, boolean firstSeen) {
+                        states.alive(id, firstSeen);
+                    }
+
+                    @Override
+                    public void dead(int id, long silentMs) {
+                        states.dead(id, silentMs);
+                    }
+                });
+    }
+
+    public int id() {
+        return myId;
+    }
+
+    public Config config() {
+        return config;
+    }
+
+    public NodeDirectory directory() {
+        return directory;
+    }
+
+    public NodeStats stats() {
+        return stats;
+    }
+
+    /** The heartbeat (or SWIM protocol) period in use now. */
+    public long heartbeatIntervalMs() {
+        return intervalMs;
+    }
+
+    /** The fixed failure timeout in use now, scaled with the interval. */
+    public long failureTimeoutMs() {
+        return timeoutMs;
+    }
+
+    /**
+     * All time-driven work that is due: heartbeat or SWIM probe, detection,
+     * eviction. Returns when to call again: the next heartbeat, and one
+     * detector tick from now at the latest.
+     */
+    public long tick() {
+        long now = clock.millis();
+        long next = now + config.tickMs;
+        if (swim == null) {
+            if (now >= nextBeat) {
+                sendHeartbeat();
+                nextBeat = now + intervalMs;
+            }
+            detector.tick(now);
+            next = Math.min(next, nextBeat);
+        } else {
+            swimTick(now);
+        }
+        evictDead(now);
+        adapt(now);
+        return next;
+    }
+
+    public void sendHeartbeat() {
+        HeartbeatCodec.encode(beatOut, myId, incarnation, clock.millis(), myIpv4.getAsInt(), unicastPort);
+        transport.multicast(beatOut.array(), HeartbeatCodec.LENGTH);
+        membershipBytes.add(HeartbeatCodec.LENGTH + DATAGRAM_OVERHEAD);
+    }
+
+    public void checkFailures() {
+        long now = clock.millis();
+        detector.tick(now);
+        evictDead(now);
+        adapt(now);
+    }
+
+    public void swimTick() {
+        if (swim == null) return;
+        long now = clock.millis();
+        swimTick(now);
+        evictDead(now);
+        adapt(now);
+    }
+
+    private void swimTick(long now) {
+        // the multicast group is only used to announce ourselves: once, and again until someone answers
+        if ((nextJoin == 0 || swim.lonely()) && now >= nextJoin) {
+            byte[] data = swim.joinMessage().getBytes(StandardCharsets.UTF_8);
+            transport.multicast(data, data.length);
+            membershipBytes.add(data.length + DATAGRAM_OVERHEAD);
+            nextJoin = Math.max(1, now + config.heartbeatIntervalMs);
+        }
+        swim.tick(now);
+    }
+
+    /**
+     * Once per period: measures what this node's membership traffic costs per
+     * period and stretches the period until all members together stay within
+     * the bandwidth budget. The cost is the median of the last few periods,
+     * so one-off bursts such as the pings that answer a join do not count.
+     * Every node sees about the same member count, so they all settle on
+     * about the same period; the failure timeout keeps its ratio to it. The
+     * period at most doubles per step, which the old timeout (several
+     * periods) still covers while peers catch up.
+     */
+    private void adapt(long now) {
+        long elapsed = now - lastAdapt;
+        if (elapsed < intervalMs) return;
+        long total = membershipBytes.sum();
+        periodBytes[periodCount++ % PERIOD_SAMPLES] = (total - bytesAtLastAdapt) * (double) intervalMs / elapsed;
+        lastAdapt = now;
+        bytesAtLastAdapt = total;
+        int n = Math.min(periodCount, PERIOD_SAMPLES);
+        System.arraycopy(periodBytes, 0, sorted, 0, n);
+        Arrays.sort(sorted, 0, n);
+        bytesPerPeriod = sorted[n / 2];
+        // the directory holds our own entry too when our heartbeats loop back
+        members = directory.liveCount() + (directory.get(myId) == null ? 1 : 0);
+        if (config.bandwidthBudget <= 0 || periodCount < MIN_PERIOD_SAMPLES) return;
+
+        long wanted = (long) Math.ceil(members * bytesPerPeriod * 1000 / config.bandwidthBudget);
+        wanted = Math.max(config.heartbeatIntervalMs, Math.min(config.maxHeartbeatIntervalMs, Math.min(wanted, 2 * intervalMs)));
+        // over the budget is fixed right away; a little under it is not worth retuning the cluster for
+        if (wanted == intervalMs || (wanted < intervalMs && (intervalMs - wanted) * 10 < intervalMs)) return;
+        intervalMs = wanted;
+        timeoutMs = config.failureTimeoutMs * wanted / config.heartbeatIntervalMs;
+        detector.setTimeoutMs(timeoutMs);
+        if (swim != null) swim.setPeriodMs(wanted);
+    }
+
+    /**
+     * One datagram from the multicast group, {@code view} wrapping its bytes.
+     * Not thread-safe: the decoded heartbeat is reused, so one receiver at a time.
+     */
+    public void receiveMulticast(ByteBuffer view, int len, InetAddress source) {
+        if (HeartbeatCodec.isHeartbeat(view, len)) {
+            if (!HeartbeatCodec.decode(view, len, beatIn)) {
+                throw new IllegalArgumentException("undecodable heartbeat");
+            }
+            int ipv4 = beatIn.ipv4 != 0 ? beatIn.ipv4 : InetAddressInfo.ipv4(source);
+            heartbeat(beatIn.id, beatIn.incarnation, ipv4, beatIn.port);
+            return;
+        }
+
+        String data = new String(view.array(), 0, len, StandardCharsets.UTF_8).trim();
+        if (swim != null) {
+            if (data.startsWith("SWIM-JOIN;")) swim.handleJoin(data, clock.millis());
+            return;
+        }
+
+        // text heartbeat of older nodes: HEARTBEAT;id;ts;ip;port
+        String[] parts = data.split(";");
+        if (parts.length >= 5 && parts[0].equals("HEARTBEAT")) {
+            int id = Integer.parseInt(parts[1]);
+            String ip = parts[3];
+            int port = Integer.parseInt(parts[4]);
+
+            long now = clock.millis();
+            heardFrom(id, now);
+            directory.update(id, 0, ip, port);
+            if (id != myId) detector.heartbeat(id, now);
+        }
+    }
+
+    /** Consumes the membership traffic among unicast datagrams; false if the text is for the application. */
+    public boolean receiveUnicast(String data) {
+        if (swim != null && data.startsWith("SWIM;")) {
+            swim.handle(data, clock.millis());
+            return true;
+        }
+        return false;
+    }
+
+    private void heartbeat(int id, int inc, int ipv4, int port) {
+        long now = clock.millis();
+        heardFrom(id, now);
+        directory.update(id, inc, ipv4, port);
+        if (id != myId) detector.heartbeat(id, now);
+    }
+
+    private void heardFrom(int id, long now) {
+        synchronized (lastHeartbeat) {
+            lastHeartbeat.put(id, now);
+        }
+        if (id != myId) stats.heard(id, now);
+    }
+
+    public void sendMulticast(String msg) {
+        byte[] data = msg.getBytes(StandardCharsets.UTF_8);
+        transport.multicast(data, data.length);
+    }
+
+    public void sendUnicast(InetSocketAddress to, String msg) {
+        byte[] data = msg.getBytes(StandardCharsets.UTF_8);
+        transport.unicast(to, data, data.length);
+    }
+
+    private void membershipUnicast(InetSocketAddress to, String msg) {
+        byte[] data = msg.getBytes(StandardCharsets.UTF_8);
+        transport.unicast(to, data, data.length);
+        membershipBytes.add(data.length + DATAGRAM_OVERHEAD);
+    }
+
+    private void evictDead(long now) {
+        for (int id : directory.evict(now)) {
+            synchronized (lastHeartbeat) {
+                lastHeartbeat.remove(id);
+            }
+            stats.forget(id);
+            detector.forget(id);
+            if (swim != null) swim.forget(id);
+            events.evicted(id);
+        }
+    }
+
+    /** Current suspicion level of a peer, see {@link FailureDetector#phi}. */
+    public double phi(int peerId) {
+        return detector.phi(peerId, clock.millis());
+    }
+
+    public void dumpNodes() {
+        System.out.println("Current node: " + myId + " unicastPort=" + unicastPort);
+        directory.dump();
+        if (swim != null) swim.dump();
+    }
+
+    public void dumpBudget() {
+        long interval = intervalMs;
+        double perNode = bytesPerPeriod < 0 ? 0 : bytesPerPeriod * 1000 / interval;
+        System.out.printf("%s %d ms, failure timeout %d ms, %d members%n",
+                swim != null ? "SWIM period" : "heartbeat every", interval, timeoutMs, members);
+        System.out.printf("membership traffic: %.0f B/s from this node, ~%.0f B/s cluster-wide%n", perNode, perNode * members);
+        if (config.bandwidthBudget > 0) {
+            System.out.printf("budget %d B/s, %.0f%% used, interval %d..%d ms%n", config.bandwidthBudget,
+                    100 * perNode * members / config.bandwidthBudget, config.heartbeatIntervalMs, config.maxHeartbeatIntervalMs);
+        } else {
+            System.out.println("no budget, fixed interval");
+        }
+    }
+
+    public void dumpStats() {
+        stats.dump(clock.millis());
+    }
+
+    /** One JSON object with the node-wide settings, the socket counters and every peer. */
+    public void appendStatsJson(StringBuilder out) {
+        stats.appendJson(out, myId, clock.millis(), intervalMs, timeoutMs, members);
+    }
+
+    public void dumpPhi() {
+        if (swim != null) {
+            // SWIM probes instead of counting heartbeats, the phi detector never gets a sample
+            System.out.println("phi is not used in SWIM mode; suspicion comes from probes:");
+            swim.dump();
+            return;
+        }
+        long now = clock.millis();
+        System.out.println(detector.phiThreshold() > 0
+                ? "phi threshold " + detector.phiThreshold()
+                : "fixed timeout " + timeoutMs + " ms (phi for information only)");
+        IntLongMap seen = new IntLongMap();
+        synchronized (lastHeartbeat) {
+            lastHeartbeat.forEach(seen::put);
+        }
+        seen.forEach((id, last) -> {
+            if (id == myId) return;
+            System.out.printf("Node %d  phi=%.2f  silent=%d ms  timeout=%d ms  %s%n", id, detector.phi(id, now),
+                    now - last, detector.timeoutMs(id), detector.isAlive(id) ? "ALIVE" : "DEAD");
+        });
+    }
+}
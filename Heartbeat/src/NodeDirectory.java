@@ -1,17 +1,94 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Contacts of the nodes one {@link Node} knows about. Entries are versioned by
+ * incarnation: an update with an older incarnation is ignored and an identical
+ * one costs a lookup and no allocation. A node declared DEAD is evicted once
+ * it has stayed dead for the grace period; the evictions are queued in the
+ * order they fall due, so checking costs nothing while nobody is due.
+ */
 public class NodeDirectory {
-    private static final Map<Integer, NodeContact> contacts = new ConcurrentHashMap<>();
-    public static void put(int id, String ip, int port) {
-        contacts.put(id, new NodeContact(ip, port));
+    private final Map<Integer, NodeContact> contacts = new ConcurrentHashMap<>();
+    private final ArrayDeque<DeadMark> dead = new ArrayDeque<>();
+    private final long evictAfterMs;
+
+    // An entry as it was when declared dead; stale once it came back or was replaced
+    private record DeadMark(NodeContact contact, long since) {}
+
+    public NodeDirectory(long evictAfterMs) {
+        this.evictAfterMs = evictAfterMs;
+    }
+
+    /** Heartbeat path: compares the packed address before building anything. */
+    public boolean update(int id, int incarnation, int ipv4, int port) {
+        NodeContact c = contacts.get(id);
+        if (c != null && (incarnation < c.incarnation
+                || (incarnation == c.incarnation && c.ipv4 == ipv4 && c.port == port))) {
+            return false;
+        }
+        contacts.put(id, new NodeContact(id, InetAddressInfo.ipString(ipv4), port, ipv4, incarnation));
+        return true;
     }
-    public static NodeContact get(int id) {
+
+    public boolean update(int id, int incarnation, String ip, int port) {
+        NodeContact c = contacts.get(id);
+        if (c != null && (incarnation < c.incarnation
+                || (incarnation == c.incarnation && c.ip.equals(ip) && c.port == port))) {
+            return false;
+        }
+        contacts.put(id, new NodeContact(id, ip, port, 0, incarnation));
+        return true;
+    }
+
+    public NodeContact get(int id) {
         return contacts.get(id);
     }
-    public static void dump() {
+
+    /** Contacts not currently declared dead, this node's own entry included when it has one. */
+    public int liveCount() {
+        int n = 0;
+        for (NodeContact c : contacts.values()) {
+            if (c.deadSince == 0) n++;
+        }
+        return n;
+    }
+
+    public synchronized void markDead(int id, long now) {
+        NodeContact c = contacts.get(id);
+        if (c == null || c.deadSince != 0) return;
+        c.deadSince = now;
+        dead.addLast(new DeadMark(c, now));
+    }
+
+    public void markAlive(int id) {
+        NodeContact c = contacts.get(id);
+        if (c != null) c.deadSince = 0;
+    }
+
+    /** Drops every node dead for longer than the grace period and returns their ids. */
+    public synchronized List<Integer> evict(long now) {
+        List<Integer> evicted = List.of();
+        while (!dead.isEmpty() && now - dead.peekFirst().since() >= evictAfterMs) {
+            DeadMark mark = dead.pollFirst();
+            NodeContact c = mark.contact();
+            if (c.deadSince != mark.since()) continue;
+            if (contacts.remove(c.id, c)) {
+                if (evicted.isEmpty()) evicted = new ArrayList<>();
+                evicted.add(c.id);
+            }
+        }
+        return evicted;
+    }
+
+    public void dump() {
         for (Map.Entry<Integer, NodeContact> e : contacts.entrySet()) {
-            System.out.println("Node " + e.getKey() + " -> " + e.getValue().ip + ":" + e.getValue().port);
+            NodeContact c = e.getValue();
+            System.out.println("Node " + e.getKey() + " -> " + c.ip + ":" + c.port + " inc=" + c.incarnation
+                    + (c.deadSince != 0 ? " (DEAD)" : ""));
         }
     }
-}
\ No newline at end of file
+}
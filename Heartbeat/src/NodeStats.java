@@ -0,0 +1,169 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What a node has seen of the network, to tune timeouts against: per peer,
+ * how regularly it is heard and how its failures were declared; per socket,
+ * the datagrams and bytes in and out and what could not be decoded or sent.
+ * Printed by the {@code stats} command and written as one JSON line per
+ * period to the stats file.
+ *
+ * Inter-arrival mean and jitter are smoothed the RTP way (RFC 3550): the mean
+ * with gain 1/8, the jitter as the mean difference between consecutive
+ * intervals with gain 1/16, so each peer costs a few fields, not a window.
+ */
+public class NodeStats {
+    /** Traffic of one socket; updated from whichever thread sends or receives. */
+    public static final class SocketCounters {
+        final String name;
+        final LongAdder packetsIn = new LongAdder();
+        final LongAdder bytesIn = new LongAdder();
+        final LongAdder packetsOut = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+        final LongAdder decodeErrors = new LongAdder();
+        final LongAdder sendErrors = new LongAdder();
+
+        SocketCounters(String name) {
+            this.name = name;
+        }
+
+        public void received(int bytes) {
+            packetsIn.increment();
+            bytesIn.add(bytes);
+        }
+
+        public void sent(int bytes) {
+            packetsOut.increment();
+            bytesOut.add(bytes);
+        }
+
+        public void decodeError() {
+            decodeErrors.increment();
+        }
+
+        /** A send that failed or, on a non-blocking channel, found no buffer space. */
+        public void sendError() {
+            sendErrors.increment();
+        }
+    }
+
+    private static final class Peer {
+        final int id;
+        long lastHeard = -1;
+        long beats;
+        double meanMs;
+        double jitterMs;
+        double lastIntervalMs = -1;
+        boolean alive;
+        int deaths;
+        int flaps;     // DEAD and back to ALIVE
+        long lastDetectionMs;
+        long maxDetectionMs;
+        long totalDetectionMs;
+
+        Peer(int id) {
+            this.id = id;
+        }
+    }
+
+    public final SocketCounters unicast = new SocketCounters("unicast");
+    public final SocketCounters multicast = new SocketCounters("multicast");
+    private final IntMap<Peer> peers = new IntMap<>();
+
+    public synchronized void heard(int id, long now) {
+        Peer p = peer(id);
+        if (p.lastHeard >= 0) {
+            double interval = now - p.lastHeard;
+            p.meanMs = p.beats == 1 ? interval : p.meanMs + (interval - p.meanMs) / 8;
+            if (p.lastIntervalMs >= 0) p.jitterMs += (Math.abs(interval - p.lastIntervalMs) - p.jitterMs) / 16;
+            p.lastIntervalMs = interval;
+        }
+        p.lastHeard = now;
+        p.beats++;
+    }
+
+    public synchronized void alive(int id, boolean firstSeen) {
+        Peer p = peer(id);
+        if (!firstSeen && !p.alive) p.flaps++;
+        p.alive = true;
+    }
+
+    /** {@code silentMs}: from the last beat to the declaration, the detection latency as the detector saw it. */
+    public synchronized void dead(int id, long silentMs) {
+        Peer p = peer(id);
+        p.alive = false;
+        p.deaths++;
+        p.lastDetectionMs = silentMs;
+        p.maxDetectionMs = Math.max(p.maxDetectionMs, silentMs);
+        p.totalDetectionMs += silentMs;
+    }
+
+    public synchronized void forget(int id) {
+        peers.remove(id);
+    }
+
+    public synchronized void dump(long now) {
+        for (SocketCounters s : new SocketCounters[] {unicast, multicast}) {
+            System.out.printf("%-9s in %d pkt / %d B, out %d pkt / %d B, %d decode errors, %d send errors%n", s.name,
+                    s.packetsIn.sum(), s.bytesIn.sum(), s.packetsOut.sum(), s.bytesOut.sum(),
+                    s.decodeErrors.sum(), s.sendErrors.sum());
+        }
+        peers.forEach((id, p) -> System.out.printf(
+                "Node %d  %s  beats=%d  interval=%.0f ms  jitter=%.1f ms  silent=%d ms  deaths=%d  flaps=%d  detection last/avg/max=%d/%d/%d ms%n",
+                id, p.alive ? "ALIVE" : "DEAD", p.beats, p.meanMs, p.jitterMs, p.lastHeard < 0 ? -1 : now - p.lastHeard,
+                p.deaths, p.flaps, p.lastDetectionMs, p.deaths == 0 ? 0 : p.totalDetectionMs / p.deaths, p.maxDetectionMs));
+    }
+
+    /** Appends one JSON object, no trailing newline; the node-wide values come from the caller. */
+    public synchronized void appendJson(StringBuilder out, int nodeId, long now, long intervalMs, long timeoutMs, int members) {
+        out.append("{\"node\":").append(nodeId)
+                .append(",\"time\":").append(now)
+                .append(",\"interval_ms\":").append(intervalMs)
+                .append(",\"timeout_ms\":").append(timeoutMs)
+                .append(",\"members\":").append(members)
+                .append(",\"sockets\":{");
+        appendJson(out, unicast);
+        out.append(',');
+        appendJson(out, multicast);
+        out.append("},\"peers\":[");
+        int before = out.length();
+        peers.forEach((id, p) -> {
+            if (out.length() > before) out.append(',');
+            out.append("{\"id\":").append(id)
+                    .append(",\"alive\":").append(p.alive)
+                    .append(",\"beats\":").append(p.beats)
+                    .append(",\"mean_interval_ms\":").append(round(p.meanMs))
+                    .append(",\"jitter_ms\":").append(round(p.jitterMs))
+                    .append(",\"silent_ms\":").append(p.lastHeard < 0 ? -1 : now - p.lastHeard)
+                    .append(",\"deaths\":").append(p.deaths)
+                    .append(",\"flaps\":").append(p.flaps)
+                    .append(",\"last_detection_ms\":").append(p.lastDetectionMs)
+                    .append(",\"max_detection_ms\":").append(p.maxDetectionMs)
+                    .append('}');
+        });
+        out.append("]}");
+    }
+
+    private static void appendJson(StringBuilder out, SocketCounters s) {
+        out.append('"').append(s.name).append("\":{")
+                .append("\"packets_in\":").append(s.packetsIn.sum())
+                .append(",\"bytes_in\":").append(s.bytesIn.sum())
+                .append(",\"packets_out\":").append(s.packetsOut.sum())
+                .append(",\"bytes_out\":").append(s.bytesOut.sum())
+                .append(",\"decode_errors\":").append(s.decodeErrors.sum())
+                .append(",\"send_errors\":").append(s.sendErrors.sum())
+                .append('}');
+    }
+
+    private static double round(double v) {
+        return Math.round(v * 10) / 10.0;
+    }
+
+    private Peer peer(int id) {
+        Peer p = peers.get(id);
+        if (p == null) {
+            p = new Peer(id);
+            peers.put(id, p);
+        }
+        return p;
+    }
+}
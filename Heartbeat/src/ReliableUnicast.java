@@ -0,0 +1,375 @@
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Reliable, ordered text messages to other nodes over plain UDP unicast.
+ *
+ * Every destination has its own sequence numbers. Messages to the same peer
+ * queued within the coalescing budget leave together in one datagram, and the
+ * receiver answers with the highest sequence it delivered in order (a
+ * cumulative ack), riding on its own data to that peer when it has some.
+ * The receiver keeps what arrives ahead of a gap, up to a window. When the
+ * retransmit timeout (estimated from the measured round trip) runs out, only
+ * the first unacked datagram's worth goes out again; each ack that moves
+ * forward without covering everything sent so far resends the next one right
+ * away, so a burst of losses costs one timeout rather than one per hole.
+ * After MAX_RETRIES timeouts in a row the queue to that peer is given up and
+ * reported.
+ *
+ * A sender picks a random session per destination, and again after giving
+ * up, so a restarted or reset sender's sequence 1 is not taken for a
+ * duplicate and a stale ack does not release newer messages.
+ *
+ * Wire format, one datagram:
+ *   RMSG;from;to;session;firstSeq;ackSession;ack;count;len:textlen:text...
+ *   RACK;from;to;ackSession;ack
+ * where len is the length of the text in chars and ackSession 0 means there
+ * is nothing to ack.
+ */
+public class ReliableUnicast {
+    public interface Transport {
+        /** False if {@code toId} has no known address right now. */
+        boolean send(int toId, String datagram);
+    }
+
+    public interface Listener {
+        void delivered(int fromId, String text);
+
+        /** {@code count} messages to {@code toId} were dropped without an ack. */
+        void undelivered(int toId, int count);
+    }
+
+    // fits one Ethernet frame; the receivers read into 2 KB buffers
+    public static final int MAX_DATAGRAM = 1400;
+    private static final int HEADER_RESERVE = 96;
+    public static final int MAX_TEXT_BYTES = MAX_DATAGRAM - HEADER_RESERVE - 6;
+
+    private static final int WINDOW = 256;
+    private static final int MAX_QUEUE = 10_000;
+    private static final int MAX_RETRIES = 8;
+    private static final long INITIAL_RTO_MS = 300;
+    private static final long MIN_RTO_MS = 20;
+    private static final long MAX_RTO_MS = 5000;
+
+    // bytes counts the text in UTF-8 plus its length prefix
+    private record Outgoing(String text, int bytes) {}
+
+    private final class Peer {
+        final int id;
+
+        // outgoing: queue.peekFirst() has sequence base, the first inFlight were sent at least once
+        final ArrayDeque<Outgoing> queue = new ArrayDeque<>();
+        int session = newSession();
+        int base = 1;
+        int inFlight;
+        long flushAt = Long.MAX_VALUE;
+        long retransmitAt = Long.MAX_VALUE;
+        int retries;
+        long rto = INITIAL_RTO_MS;
+        double srtt = -1;
+        double rttvar;
+        // one round-trip sample at a time, never on a retransmitted message (Karn)
+        int timedSeq;
+        long timedAt;
+        // after a timeout: resending hole by hole until everything up to recoverUntil is acked
+        int recoverUntil;
+        boolean resendNext;
+
+        // incoming
+        int inSession;
+        int expected = 1;
+        boolean ackDue;
+        long ackAt = Long.MAX_VALUE;
+        Map<Integer, String> ahead; // arrived past a gap, created on the first one
+
+        Peer(int id) {
+            this.id = id;
+        }
+    }
+
+    private final int myId;
+    private final long batchMs;
+    private final Transport transport;
+    private final Listener listener;
+    private final Random random = new Random();
+    private final Map<Integer, Peer> peers = new HashMap<>();
+    private final StringBuilder out = new StringBuilder(MAX_DATAGRAM);
+    private final StringBuilder header = new StringBuilder(MAX_DATAGRAM);
+
+    private long messagesSent, messagesDelivered, datagramsSent, retransmitted, acksSent, dropped;
+
+    public ReliableUnicast(int myId, long batchMs, Transport transport, Listener listener) {
+        this.myId = myId;
+        this.batchMs = batchMs;
+        this.transport = transport;
+        this.listener = listener;
+    }
+
+    /** Queues {@code text} for {@code toId}; false if it is too long or the queue is full. */
+    public synchronized boolean send(int toId, String text, long now) {
+        int bytes = utf8Length(text);
+        if (bytes > MAX_TEXT_BYTES) return false;
+        Peer p = peers.computeIfAbsent(toId, Peer::new);
+        if (p.queue.size() >= MAX_QUEUE) return false;
+        p.queue.addLast(new Outgoing(text, bytes + digits(text.length()) + 1));
+        messagesSent++;
+        if (p.flushAt == Long.MAX_VALUE) p.flushAt = now + batchMs;
+        return true;
+    }
+
+    /**
+     * Sends whatever is due: batches whose budget ran out, retransmissions,
+     * delayed acks. Returns when it next has something to do.
+     */
+    public synchronized long flush(long now) {
+        long next = Long.MAX_VALUE;
+        for (Peer p : peers.values()) {
+            if (p.inFlight > 0 && now >= p.retransmitAt) {
+                if (++p.retries > MAX_RETRIES) {
+                    giveUp(p);
+                    continue;
+                }
+                p.rto = Math.min(MAX_RTO_MS, p.rto * 2);
+                p.timedSeq = 0;
+                p.recoverUntil = p.base + p.inFlight - 1;
+                p.resendNext = false;
+                retransmitted += transmit(p, 0, p.inFlight, 1);
+                p.retransmitAt = now + p.rto;
+            } else if (p.resendNext) {
+                p.resendNext = false;
+                retransmitted += transmit(p, 0, p.inFlight, 1);
+            }
+
+            int unsent = p.queue.size() - p.inFlight;
+            int room = WINDOW - p.inFlight;
+            if (unsent > 0 && room > 0 && now >= p.flushAt) {
+                int n = Math.min(unsent, room);
+                if (p.timedSeq == 0) {
+                    p.timedSeq = p.base + p.inFlight;
+                    p.timedAt = now;
+                }
+                transmit(p, p.inFlight, n, Integer.MAX_VALUE);
+                p.inFlight += n;
+                if (p.retransmitAt == Long.MAX_VALUE) p.retransmitAt = now + p.rto;
+                // the rest waits for acks to open the window, not for another budget
+                p.flushAt = p.queue.size() > p.inFlight ? now : Long.MAX_VALUE;
+            }
+
+            if (p.ackDue && now >= p.ackAt) sendAck(p, now);
+
+            if (p.inFlight < WINDOW) next = Math.min(next, p.flushAt);
+            if (p.inFlight > 0) next = Math.min(next, p.resendNext ? now : p.retransmitAt);
+            if (p.ackDue) next = Math.min(next, p.ackAt);
+        }
+        return next;
+    }
+
+    /** Consumes RMSG and RACK datagrams; false if {@code data} is something else. */
+    public synchronized boolean receive(String data, long now) {
+        if (data.startsWith("RACK;")) {
+            String[] parts = data.split(";");
+            if (parts.length < 5 || Integer.parseInt(parts[2]) != myId) return true;
+            Peer p = peers.get(Integer.parseInt(parts[1]));
+            if (p != null) acked(p, Integer.parseInt(parts[3]), Integer.parseInt(parts[4]), now);
+            return true;
+        }
+        if (!data.startsWith("RMSG;")) return false;
+
+        String[] parts = data.split(";", 9);
+        if (parts.length < 9 || Integer.parseInt(parts[2]) != myId) return true;
+        int from = Integer.parseInt(parts[1]);
+        int session = Integer.parseInt(parts[3]);
+        int firstSeq = Integer.parseInt(parts[4]);
+        int count = Integer.parseInt(parts[7]);
+        Peer p = peers.computeIfAbsent(from, Peer::new);
+        acked(p, Integer.parseInt(parts[5]), Integer.parseInt(parts[6]), now);
+
+        if (session != p.inSession) {
+            // a new session is only picked up from its start, a late datagram of an old one is ignored
+            if (firstSeq != 1) return true;
+            p.inSession = session;
+            p.expected = 1;
+            p.ahead = null;
+        }
+
+        String body = parts[8];
+        int pos = 0;
+        for (int i = 0; i < count; i++) {
+            int colon = body.indexOf(':', pos);
+            int len = Integer.parseInt(body, pos, colon, 10);
+            int seq = firstSeq + i;
+            pos = colon + 1 + len;
+            if (seq < p.expected) continue;      // duplicate
+            if (seq > p.expected) {
+                // past a gap: kept until the gap is filled, the ack still says where it is
+                if (seq - p.expected < WINDOW) {
+                    if (p.ahead == null) p.ahead = new HashMap<>();
+                    p.ahead.putIfAbsent(seq, body.substring(colon + 1, pos));
+                }
+                continue;
+            }
+            deliver(p, from, body.substring(colon + 1, pos));
+            if (p.ahead != null) {
+                String next;
+                while ((next = p.ahead.remove(p.expected)) != null) deliver(p, from, next);
+            }
+        }
+        if (!p.ackDue) {
+            p.ackDue = true;
+            p.ackAt = now + batchMs;
+        }
+        return true;
+    }
+
+    private void deliver(Peer p, int from, String text) {
+        p.expected++;
+        messagesDelivered++;
+        listener.delivered(from, text);
+    }
+
+    private void acked(Peer p, int session, int ack, long now) {
+        if (session == 0 || session != p.session) return;
+        int n = Math.min(ack - p.base + 1, p.inFlight);
+        if (n <= 0) return;
+        for (int i = 0; i < n; i++) p.queue.pollFirst();
+        p.base += n;
+        p.inFlight -= n;
+        p.retries = 0;
+        if (p.recoverUntil != 0) {
+            if (ack >= p.recoverUntil || p.inFlight == 0) p.recoverUntil = 0;
+            else p.resendNext = true;
+        }
+
+        if (p.timedSeq != 0 && ack >= p.timedSeq) {
+            // RFC 6298 smoothing
+            double sample = now - p.timedAt;
+            if (p.srtt < 0) {
+                p.srtt = sample;
+                p.rttvar = sample / 2;
+            } else {
+                p.rttvar = 0.75 * p.rttvar + 0.25 * Math.abs(p.srtt - sample);
+                p.srtt = 0.875 * p.srtt + 0.125 * sample;
+            }
+            p.timedSeq = 0;
+        }
+        if (p.srtt >= 0) p.rto = Math.max(MIN_RTO_MS, Math.min(MAX_RTO_MS, (long) (p.srtt + 4 * p.rttvar) + batchMs));
+        p.retransmitAt = p.inFlight > 0 ? now + p.rto : Long.MAX_VALUE;
+        if (p.queue.size() > p.inFlight) p.flushAt = Math.min(p.flushAt, now);
+    }
+
+    // Sends queue entries [from, from + n) in as few datagrams as they fit in, at most maxDatagrams; returns how many went
+    private int transmit(Peer p, int from, int n, int maxDatagrams) {
+        Iterator<Outgoing> it = p.queue.iterator();
+        for (int i = 0; i < from; i++) it.next();
+        Outgoing m = it.next();
+        int seq = p.base + from;
+        int left = n;
+        boolean sent = false;
+        for (int d = 0; d < maxDatagrams && left > 0; d++) {
+            int first = seq;
+            int count = 0;
+            int bytes = 0;
+            out.setLength(0);
+            do {
+                out.append(m.text().length()).append(':').append(m.text());
+                bytes += m.bytes();
+                count++;
+                seq++;
+                left--;
+                m = left > 0 ? it.next() : null;
+            } while (m != null && bytes + m.bytes() <= MAX_DATAGRAM - HEADER_RESERVE);
+
+            header.setLength(0);
+            header.append("RMSG;").append(myId).append(';').append(p.id).append(';').append(p.session)
+                    .append(';').append(first).append(';').append(p.inSession).append(';').append(p.expected - 1)
+                    .append(';').append(count).append(';').append(out);
+            if (transport.send(p.id, header.toString())) {
+                datagramsSent++;
+                sent = true;
+            }
+        }
+        if (sent) {
+            // the ack rode along
+            p.ackDue = false;
+            p.ackAt = Long.MAX_VALUE;
+        }
+        return n - left;
+    }
+
+    private void sendAck(Peer p, long now) {
+        if (!transport.send(p.id, "RACK;" + myId + ";" + p.id + ";" + p.inSession + ";" + (p.expected - 1))) {
+            // no address yet, so the ack stays due; retry shortly rather than on every flush
+            p.ackAt = now + Math.max(batchMs, MIN_RTO_MS);
+            return;
+        }
+        acksSent++;
+        p.ackDue = false;
+        p.ackAt = Long.MAX_VALUE;
+    }
+
+    private void giveUp(Peer p) {
+        int count = p.queue.size();
+        dropped += count;
+        p.queue.clear();
+        // start over under a new session, the receiver would otherwise wait for the dropped sequences
+        p.session = newSession();
+        p.base = 1;
+        p.inFlight = 0;
+        p.retries = 0;
+        p.rto = INITIAL_RTO_MS;
+        p.timedSeq = 0;
+        p.recoverUntil = 0;
+        p.resendNext = false;
+        p.flushAt = Long.MAX_VALUE;
+        p.retransmitAt = Long.MAX_VALUE;
+        listener.undelivered(p.id, count);
+    }
+
+    /** Forgets a peer that left for good, dropping whatever was still queued to it. */
+    public synchronized void forget(int id) {
+        Peer p = peers.remove(id);
+        if (p != null && !p.queue.isEmpty()) {
+            dropped += p.queue.size();
+            listener.undelivered(id, p.queue.size());
+        }
+    }
+
+    public synchronized void dump() {
+        System.out.printf("Reliable unicast: %d sent, %d delivered, %d datagrams, %d retransmitted, %d acks, %d dropped%n",
+                messagesSent, messagesDelivered, datagramsSent, retransmitted, acksSent, dropped);
+        for (Peer p : peers.values()) {
+            if (p.queue.isEmpty()) continue;
+            System.out.printf("  to node %d: %d queued, %d in flight, rto %d ms%n", p.id, p.queue.size(), p.inFlight, p.rto);
+        }
+    }
+
+    private int newSession() {
+        return 1 + random.nextInt(Integer.MAX_VALUE - 1);
+    }
+
+    private static int digits(int n) {
+        int d = 1;
+        while (n >= 10) {
+            n /= 10;
+            d++;
+        }
+        return d;
+    }
+
+    private static int utf8Length(String s) {
+        int bytes = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) bytes++;
+            else if (c < 0x800) bytes += 2;
+            else if (Character.isHighSurrogate(c)) {
+                bytes += 4;
+                i++;
+            } else bytes += 3;
+        }
+        return bytes;
+    }
+}
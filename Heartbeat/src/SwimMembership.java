@@ -0,0 +1,400 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * SWIM membership over unicast instead of all-to-all multicast heartbeats.
+ *
+ * Every protocol period a node pings one member, taken round-robin from a
+ * shuffled list. Without an ack within the ping timeout it asks k other
+ * members to ping the target for it (ping-req); still nothing by the end of
+ * the period and the target becomes SUSPECT, and after the suspicion timeout
+ * DEAD. Joins, suspicions and deaths travel piggybacked on the pings and acks
+ * themselves, each one a logarithmic number of times, so a node sends a
+ * constant number of packets per period whatever the cluster size.
+ *
+ * A member that hears it is suspected refutes it by bumping its incarnation.
+ * The owner starts the incarnation at its boot time in seconds, so a
+ * restarted node outranks the DEAD record of its previous life.
+ *
+ * Wire format, one datagram:
+ *   SWIM;type;from;incarnation;ip;port;seq;target;updates
+ * where type is PING, ACK or PINGREQ, target is the node whose liveness is
+ * probed, and updates is a '|'-separated list of kind,id,incarnation,ip,port
+ * with kind A(live), S(uspect) or D(ead).
+ */
+public class SwimMembership {
+    public interface Transport {
+        void send(InetSocketAddress to, String msg);
+    }
+
+    public interface Listener extends FailureDetector.Listener {
+        /** Contact details of a live member, first seen or with a new incarnation. */
+        void contact(int id, int incarnation, String ip, int port);
+
+        /** Direct evidence that {@code id} is up: a message from it or an ack on its behalf. */
+        void heard(int id, long now);
+    }
+
+    enum State { ALIVE, SUSPECT, DEAD }
+
+    private static final int INDIRECT_PROBES = 3;
+    private static final int MAX_PIGGYBACK = 6;
+    private static final int RETRANSMIT_MULT = 3;
+    private static final int SUSPICION_MULT = 5;
+
+    private static final class Member {
+        final int id;
+        String ip;
+        int port;
+        InetSocketAddress address; // resolved once per change, not per send
+        int incarnation;
+        State state = State.ALIVE;
+        long suspectSince;
+        long lastHeard;
+
+        Member(int id) {
+            this.id = id;
+        }
+    }
+
+    private static final class Update {
+        final char kind;
+        final int id;
+        final int incarnation;
+        final String ip;
+        final int port;
+        int sendsLeft;
+
+        Update(char kind, int id, int incarnation, String ip, int port, int sendsLeft) {
+            this.kind = kind;
+            this.id = id;
+            this.incarnation = incarnation;
+            this.ip = ip;
+            this.port = port;
+            this.sendsLeft = sendsLeft;
+        }
+    }
+
+    // A ping-req we are serving: our own ping seq -> who asked, and under which seq
+    private record Relay(int origin, int originSeq, long since) {}
+
+    private final int myId;
+    private final String myIp;
+    private final int myPort;
+    private int incarnation;
+
+    private long periodMs;
+    private long pingTimeoutMs;
+    private final Transport transport;
+    private final Listener listener;
+    private final Random random;
+
+    private final Map<Integer, Member> members = new HashMap<>();
+    private final List<Integer> probeOrder = new ArrayList<>();
+    private int probeNext;
+    private final List<Update> gossip = new ArrayList<>();
+    private final Map<Integer, Relay> relays = new HashMap<>();
+    private int seq;
+
+    // The probe of the current period
+    private Member probeTarget;
+    private int probeSeq;
+    private long probeStart;
+    private boolean probeAcked;
+    private boolean indirectSent;
+
+    public SwimMembership(int myId, int incarnation, String myIp, int myPort, long periodMs, Random random,
+                          Transport transport, Listener listener) {
+        this.myId = myId;
+        this.incarnation = incarnation;
+        this.random = random;
+        this.myIp = myIp;
+        this.myPort = myPort;
+        this.periodMs = periodMs;
+        this.pingTimeoutMs = periodMs / 3;
+        this.transport = transport;
+        this.listener = listener;
+    }
+
+    /** A new protocol period; suspicion timeouts follow it, the probe under way keeps its start. */
+    public synchronized void setPeriodMs(long periodMs) {
+        this.periodMs = periodMs;
+        this.pingTimeoutMs = periodMs / 3;
+    }
+
+    /** Multicast announcement that makes existing members ping us back. */
+    public synchronized String joinMessage() {
+        return "SWIM-JOIN;" + myId + ";" + incarnation + ";" + myIp + ";" + myPort;
+    }
+
+    /** True while no other member is known yet, so the join should be repeated. */
+    public synchronized boolean lonely() {
+        return members.isEmpty();
+    }
+
+    public synchronized void handleJoin(String data, long now) {
+        String[] p = data.split(";");
+        if (p.length < 5) return;
+        try {
+            int id = Integer.parseInt(p[1]);
+            if (id == myId) return;
+            int inc = Integer.parseInt(p[2]);
+            apply('A', id, inc, p[3], Integer.parseInt(p[4]), now);
+            // Answer straight away, so the newcomer learns about us and what we gossip
+            Member m = members.get(id);
+            if (m != null && m.state == State.ALIVE) send(m.address, "PING", ++seq, id);
+        } catch (NumberFormatException ignored) {
+            // not ours or damaged, drop it
+        }
+    }
+
+    public synchronized void handle(String data, long now) {
+        String[] p = data.split(";", 9);
+        if (p.length < 8) return;
+        try {
+            String type = p[1];
+            int from = Integer.parseInt(p[2]);
+            int fromInc = Integer.parseInt(p[3]);
+            String fromIp = p[4];
+            int fromPort = Integer.parseInt(p[5]);
+            int msgSeq = Integer.parseInt(p[6]);
+            int target = Integer.parseInt(p[7]);
+            if (from == myId) return;
+
+            // Whoever talks to us is alive, and may be new to us
+            apply('A', from, fromInc, fromIp, fromPort, now);
+            heard(from, now);
+            Member sender = members.get(from);
+            if (sender == null) return;
+            if (sender.state == State.DEAD) {
+                // It missed its own death notice; tell it again so it can rejoin with a new incarnation
+                spread('D', from, sender.incarnation, sender.ip, sender.port);
+            }
+            if (p.length == 9 && !p[8].isEmpty()) {
+                for (String u : p[8].split("\\|")) applyEncoded(u, now);
+            }
+
+            switch (type) {
+                case "PING" -> send(sender.address, "ACK", msgSeq, myId);
+                case "PINGREQ" -> {
+                    Member t = members.get(target);
+                    if (t == null || t.state == State.DEAD) return;
+                    int relaySeq = ++seq;
+                    relays.put(relaySeq, new Relay(from, msgSeq, now));
+                    send(t.address, "PING", relaySeq, target);
+                }
+                case "ACK" -> {
+                    heard(target, now);
+                    Relay r = relays.remove(msgSeq);
+                    if (r != null) {
+                        Member origin = members.get(r.origin());
+                        if (origin != null) send(origin.address, "ACK", r.originSeq(), target);
+                    } else if (probeTarget != null && msgSeq == probeSeq && target == probeTarget.id) {
+                        probeAcked = true;
+                    }
+                }
+                default -> {}
+            }
+        } catch (NumberFormatException ignored) {
+            // not ours or damaged, drop it
+        }
+    }
+
+    /** Drives probes and suspicion timeouts; call it a few times per protocol period. */
+    public synchronized void tick(long now) {
+        if (probeTarget != null && !probeAcked) {
+            if (!indirectSent && now - probeStart >= pingTimeoutMs) {
+                indirectSent = true;
+                for (Member m : randomMembers(INDIRECT_PROBES, probeTarget.id)) {
+                    send(m.address, "PINGREQ", probeSeq, probeTarget.id);
+                }
+            }
+        }
+
+        if (probeTarget == null || now - probeStart >= periodMs) {
+            if (probeTarget != null && !probeAcked) suspect(probeTarget, now);
+            startProbe(now);
+        }
+
+        long suspicionMs = suspicionTimeoutMs();
+        for (Member m : members.values()) {
+            if (m.state == State.SUSPECT && now - m.suspectSince >= suspicionMs) {
+                declareDead(m, m.incarnation, now);
+            }
+        }
+        relays.values().removeIf(r -> now - r.since() > periodMs);
+    }
+
+    /** Drops every trace of an evicted member; it has to join again to come back. */
+    public synchronized void forget(int id) {
+        if (members.remove(id) == null) return;
+        probeOrder.remove(Integer.valueOf(id));
+        gossip.removeIf(u -> u.id == id);
+        if (probeTarget != null && probeTarget.id == id) probeTarget = null;
+    }
+
+    public synchronized void dump() {
+        System.out.println("SWIM incarnation " + incarnation + ", " + members.size() + " members, "
+                + gossip.size() + " updates to spread, suspicion timeout " + suspicionTimeoutMs() + " ms");
+        for (Member m : members.values()) {
+            System.out.println("  Node " + m.id + " " + m.state + " inc=" + m.incarnation + " " + m.ip + ":" + m.port);
+        }
+    }
+
+    private void startProbe(long now) {
+        probeTarget = nextProbeTarget();
+        probeAcked = false;
+        indirectSent = false;
+        probeStart = now;
+        if (probeTarget != null) {
+            probeSeq = ++seq;
+            send(probeTarget.address, "PING", probeSeq, probeTarget.id);
+        }
+    }
+
+    // Round-robin over a shuffled list: every member is probed within n periods
+    private Member nextProbeTarget() {
+        for (int tries = probeOrder.size(); tries > 0; tries--) {
+            if (probeNext >= probeOrder.size()) {
+                Collections.shuffle(probeOrder, random);
+                probeNext = 0;
+            }
+            Member m = members.get(probeOrder.get(probeNext++));
+            if (m != null && m.state != State.DEAD) return m;
+        }
+        return null;
+    }
+
+    private List<Member> randomMembers(int k, int exclude) {
+        List<Member> candidates = new ArrayList<>();
+        for (Member m : members.values()) {
+            if (m.state == State.ALIVE && m.id != exclude) candidates.add(m);
+        }
+        Collections.shuffle(candidates, random);
+        return candidates.subList(0, Math.min(k, candidates.size()));
+    }
+
+    private void suspect(Member m, long now) {
+        if (m.state != State.ALIVE) return;
+        m.state = State.SUSPECT;
+        m.suspectSince = now;
+        spread('S', m.id, m.incarnation, m.ip, m.port);
+    }
+
+    private void declareDead(Member m, int inc, long now) {
+        m.state = State.DEAD;
+        m.incarnation = inc;
+        spread('D', m.id, inc, m.ip, m.port);
+        listener.dead(m.id, now - m.lastHeard);
+    }
+
+    private void heard(int id, long now) {
+        Member m = members.get(id);
+        if (m == null || m.state == State.DEAD) return;
+        m.lastHeard = now;
+        listener.heard(id, now);
+    }
+
+    private void applyEncoded(String u, long now) {
+        String[] f = u.split(",");
+        if (f.length != 5 || f[0].length() != 1) return;
+        apply(f[0].charAt(0), Integer.parseInt(f[1]), Integer.parseInt(f[2]), f[3], Integer.parseInt(f[4]), now);
+    }
+
+    private void apply(char kind, int id, int inc, String ip, int port, long now) {
+        if (id == myId) {
+            // Refute rumours about ourselves with a higher incarnation
+            if (kind != 'A' && inc >= incarnation) {
+                incarnation = inc + 1;
+                spread('A', myId, incarnation, myIp, myPort);
+            }
+            return;
+        }
+
+        Member m = members.get(id);
+        switch (kind) {
+            case 'A' -> {
+                if (m == null) {
+                    m = new Member(id);
+                    m.ip = ip;
+                    m.port = port;
+                    m.address = new InetSocketAddress(ip, port);
+                    m.incarnation = inc;
+                    m.lastHeard = now;
+                    members.put(id, m);
+                    probeOrder.add(random.nextInt(probeOrder.size() + 1), id);
+                    listener.contact(id, inc, ip, port);
+                    listener.alive(id, true);
+                    spread('A', id, inc, ip, port);
+                } else if (inc > m.incarnation) {
+                    boolean revived = m.state != State.ALIVE;
+                    m.incarnation = inc;
+                    m.state = State.ALIVE;
+                    if (!ip.equals(m.ip) || port != m.port) {
+                        m.ip = ip;
+                        m.port = port;
+                        m.address = new InetSocketAddress(ip, port);
+                    }
+                    listener.contact(id, inc, ip, port);
+                    if (revived) {
+                        m.lastHeard = now;
+                        listener.alive(id, false);
+                    }
+                    spread('A', id, inc, ip, port);
+                }
+            }
+            case 'S' -> {
+                if (m == null) return;
+                if ((m.state == State.ALIVE && inc >= m.incarnation) || (m.state == State.SUSPECT && inc > m.incarnation)) {
+                    m.incarnation = inc;
+                    m.state = State.SUSPECT;
+                    m.suspectSince = now;
+                    spread('S', id, inc, m.ip, m.port);
+                }
+            }
+            case 'D' -> {
+                if (m != null && m.state != State.DEAD && inc >= m.incarnation) declareDead(m, inc, now);
+            }
+            default -> {}
+        }
+    }
+
+    private void spread(char kind, int id, int inc, String ip, int port) {
+        // A newer rumour about a member replaces whatever was still queued about it
+        gossip.removeIf(u -> u.id == id);
+        gossip.add(new Update(kind, id, inc, ip, port, retransmits()));
+    }
+
+    private void send(InetSocketAddress to, String type, int msgSeq, int target) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("SWIM;").append(type).append(';').append(myId).append(';').append(incarnation).append(';')
+                .append(myIp).append(';').append(myPort).append(';').append(msgSeq).append(';').append(target).append(';');
+
+        // Freshest rumours first: they have the most sends left
+        gossip.sort((a, b) -> Integer.compare(b.sendsLeft, a.sendsLeft));
+        int n = 0;
+        for (Iterator<Update> it = gossip.iterator(); it.hasNext() && n < MAX_PIGGYBACK; n++) {
+            Update u = it.next();
+            if (n > 0) sb.append('|');
+            sb.append(u.kind).append(',').append(u.id).append(',').append(u.incarnation).append(',')
+                    .append(u.ip).append(',').append(u.port);
+            if (--u.sendsLeft <= 0) it.remove();
+        }
+        transport.send(to, sb.toString());
+    }
+
+    // lambda * log(n) sends reach every member with high probability
+    private int retransmits() {
+        return RETRANSMIT_MULT * (int) Math.ceil(Math.log(members.size() + 2) / Math.log(2));
+    }
+
+    private long suspicionTimeoutMs() {
+        return (long) (SUSPICION_MULT * Math.max(1, Math.log10(members.size() + 1)) * periodMs);
+    }
+}
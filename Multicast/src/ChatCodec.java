@@ -0,0 +1,260 @@
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Binary wire format of the chat, one message per datagram:
+ *   byte MAGIC, byte type, byte n, sender (n bytes UTF-8),
+ *   timestamp (unsigned varint, ms), payload (UTF-8, rest of the datagram)
+ * and for RCHAT session and seq as two more varints after the timestamp.
+ *
+ * Several messages of one sender can share a datagram:
+ *   byte MAGIC, byte BATCH, byte n, sender, then per message
+ *   byte type, timestamp, [session, seq], length (2-byte varint), payload
+ * A receiver gets them one by one from decode() and next(), as if they had
+ * come alone.
+ *
+ * Encoding writes into one reused buffer, so callers take turns on the codec.
+ * Decoding reads the header in place: the sender comes from a table of the
+ * ids seen so far, compared byte by byte, and the payload stays bytes until
+ * somebody asks for its text. Decoding needs no turn on the codec; the table
+ * has a lock of its own, so receivers do not wait behind a send.
+ *
+ * MAGIC is not a letter, so a datagram of an older peer, in the text format
+ * type|sender|timestamp|payload, is still told apart and read.
+ */
+public class ChatCodec {
+    static final byte MAGIC = (byte) 0xC5;
+    // the receivers read into buffers this large
+    public static final int MAX_DATAGRAM = 8192;
+    // past this, new sender ids are decoded but no longer kept
+    private static final int MAX_SENDERS = 4096;
+
+    private static final MulticastChatPeer.Type[] TYPES = MulticastChatPeer.Type.values();
+
+    private final byte[] self;
+    private final ByteBuffer out = ByteBuffer.allocate(MAX_DATAGRAM);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private final ByteBuffer batch = ByteBuffer.allocate(MAX_DATAGRAM);
+    private int batched;
+
+    // senders seen so far, open addressing on the hash of their bytes; guarded by sendersLock
+    private final Object sendersLock = new Object();
+    private byte[][] senderBytes = new byte[32][];
+    private String[] senderIds = new String[32];
+    private int senders;
+
+    public ChatCodec(String peerId) {
+        self = peerId.getBytes(StandardCharsets.UTF_8);
+        if (self.length == 0 || self.length > 255) throw new IllegalArgumentException("peer id must be 1..255 bytes");
+        intern(self, 0, self.length);
+    }
+
+    /** Encodes one message; the buffer is valid until the next call. */
+    public ByteBuffer encode(MulticastChatPeer.Type type, long ts, CharSequence payload) throws IOException {
+        return encode(type, ts, 0, 0, payload);
+    }
+
+    public ByteBuffer encode(MulticastChatPeer.Type type, long ts, long session, long seq, CharSequence payload) throws IOException {
+        out.clear();
+        out.put(MAGIC).put((byte) type.ordinal()).put((byte) self.length).put(self);
+        putVarint(out, ts);
+        if (type == MulticastChatPeer.Type.RCHAT) {
+            putVarint(out, session);
+            putVarint(out, seq);
+        }
+        encoder.reset();
+        CoderResult r = encoder.encode(CharBuffer.wrap(payload), out, true);
+        if (r.isOverflow() || encoder.flush(out).isOverflow()) throw new IOException("message longer than a datagram");
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Adds a message to the batch, which holds at most {@code limit} bytes;
+     * false if it does not fit: send the batch and try again, or, if the
+     * batch was empty, send the message alone.
+     */
+    public boolean addToBatch(MulticastChatPeer.Type type, long ts, long session, long seq, CharSequence payload, int limit) {
+        if (batched == 0) {
+            batch.clear();
+            batch.put(MAGIC).put((byte) MulticastChatPeer.Type.BATCH.ordinal()).put((byte) self.length).put(self);
+        }
+        int mark = batch.position();
+        batch.limit(limit);
+        try {
+            batch.put((byte) type.ordinal());
+            putVarint(batch, ts);
+            if (type == MulticastChatPeer.Type.RCHAT) {
+                putVarint(batch, session);
+                putVarint(batch, seq);
+            }
+            int lengthAt = batch.position();
+            // room for the length, filled in below; put, unlike position(), overflows the way the catch expects
+            batch.putShort((short) 0);
+            encoder.reset();
+            CoderResult r = encoder.encode(CharBuffer.wrap(payload), batch, true);
+            if (r.isOverflow() || encoder.flush(batch).isOverflow()) {
+                batch.position(mark);
+                return false;
+            }
+            // the length is known only now; always two bytes, batches are smaller than 16 KB
+            int length = batch.position() - lengthAt - 2;
+            batch.put(lengthAt, (byte) (length & 0x7F | 0x80)).put(lengthAt + 1, (byte) (length >>> 7));
+        } catch (BufferOverflowException e) {
+            batch.position(mark);
+            return false;
+        }
+        batched++;
+        return true;
+    }
+
+    public int batched() {
+        return batched;
+    }
+
+    /** The batch to send, valid until the next addToBatch(); the codec starts a new one. */
+    public ByteBuffer takeBatch() {
+        batched = 0;
+        return batch.flip();
+    }
+
+    /** Reads the message in {@code data[off, off + len)} into {@code m}; false if it is not one. */
+    public boolean decode(byte[] data, int off, int len, MulticastChatPeer.Msg m) {
+        m.batchAt = m.batchEnd = 0;
+        if (len < 1) return false;
+        if (data[off] != MAGIC) return decodeText(data, off, len, m);
+        int end = off + len;
+        if (len < 4) return false;
+        int op = data[off + 1];
+        int n = data[off + 2] & 0xFF;
+        if (op < 0 || op >= TYPES.length || n == 0 || off + 3 + n > end) return false;
+        m.sender = intern(data, off + 3, n);
+        if (TYPES[op] == MulticastChatPeer.Type.BATCH) {
+            m.set(data, off, 0);
+            m.batchAt = off + 3 + n;
+            m.batchEnd = end;
+            return next(m);
+        }
+        int pos = fields(data, off + 3 + n, end, TYPES[op], m);
+        if (pos < 0) return false;
+        m.set(data, pos, end - pos);
+        return true;
+    }
+
+    /** Moves {@code m} to the next message of the batch it came in; false if there is none. */
+    public boolean next(MulticastChatPeer.Msg m) {
+        byte[] data = m.data();
+        int pos = m.batchAt;
+        int end = m.batchEnd;
+        if (pos >= end) return false;
+        int op = data[pos];
+        // a batch in a batch is not written, so not read either
+        if (op < 0 || op >= TYPES.length || TYPES[op] == MulticastChatPeer.Type.BATCH) return false;
+        pos = fields(data, pos + 1, end, TYPES[op], m);
+        if (pos < 0) return false;
+        long length = varint(data, pos, end);
+        pos = skipVarint(data, pos, end);
+        if (pos < 0 || length > end - pos) return false;
+        m.set(data, pos, (int) length);
+        m.batchAt = pos + (int) length;
+        return true;
+    }
+
+    // type, timestamp and, for RCHAT, session and seq; returns the position after them or -1
+    private static int fields(byte[] data, int pos, int end, MulticastChatPeer.Type type, MulticastChatPeer.Msg m) {
+        m.type = type;
+        m.ts = varint(data, pos, end);
+        pos = skipVarint(data, pos, end);
+        m.session = m.seq = 0;
+        if (pos > 0 && type == MulticastChatPeer.Type.RCHAT) {
+            m.session = varint(data, pos, end);
+            pos = skipVarint(data, pos, end);
+            if (pos > 0) m.seq = varint(data, pos, end);
+            if (pos > 0) pos = skipVarint(data, pos, end);
+        }
+        return pos;
+    }
+
+    private static void putVarint(ByteBuffer b, long v) {
+        for (; (v & ~0x7FL) != 0; v >>>= 7) b.put((byte) (v & 0x7F | 0x80));
+        b.put((byte) v);
+    }
+
+    private static long varint(byte[] data, int pos, int end) {
+        long v = 0;
+        for (int shift = 0; pos < end && shift <= 63; shift += 7) {
+            byte b = data[pos++];
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0) break;
+        }
+        return v;
+    }
+
+    // position after the varint at pos, -1 if it runs past end
+    private static int skipVarint(byte[] data, int pos, int end) {
+        for (int i = 0; i < 10 && pos < end; i++) {
+            if (data[pos++] >= 0) return pos;
+        }
+        return -1;
+    }
+
+    // the old text format
+    private boolean decodeText(byte[] data, int off, int len, MulticastChatPeer.Msg m) {
+        String[] parts = new String(data, off, len, StandardCharsets.UTF_8).split("\\|", 4);
+        if (parts.length < 4) return false;
+        try {
+            m.type = MulticastChatPeer.Type.valueOf(parts[0]);
+            m.ts = Long.parseLong(parts[2]);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        byte[] sender = parts[1].getBytes(StandardCharsets.UTF_8);
+        m.sender = intern(sender, 0, sender.length);
+        m.set(parts[3]);
+        return true;
+    }
+
+    private String intern(byte[] data, int off, int n) {
+        int h = 1;
+        for (int i = off; i < off + n; i++) h = 31 * h + data[i];
+        synchronized (sendersLock) {
+            int mask = senderBytes.length - 1;
+            int i = (h ^ h >>> 16) & mask;
+            for (byte[] b; (b = senderBytes[i]) != null; i = (i + 1) & mask) {
+                if (Arrays.equals(b, 0, b.length, data, off, off + n)) return senderIds[i];
+            }
+            byte[] copy = Arrays.copyOfRange(data, off, off + n);
+            String id = new String(copy, StandardCharsets.UTF_8);
+            if (senders >= MAX_SENDERS) return id;
+            senderBytes[i] = copy;
+            senderIds[i] = id;
+            if (++senders * 2 > senderBytes.length) grow();
+            return id;
+        }
+    }
+
+    // called with sendersLock held
+    private void grow() {
+        byte[][] oldBytes = senderBytes;
+        String[] oldIds = senderIds;
+        senderBytes = new byte[oldBytes.length * 2][];
+        senderIds = new String[oldBytes.length * 2];
+        int mask = senderBytes.length - 1;
+        for (int j = 0; j < oldBytes.length; j++) {
+            byte[] b = oldBytes[j];
+            if (b == null) continue;
+            int h = 1;
+            for (byte x : b) h = 31 * h + x;
+            int i = (h ^ h >>> 16) & mask;
+            while (senderBytes[i] != null) i = (i + 1) & mask;
+            senderBytes[i] = b;
+            senderIds[i] = oldIds[j];
+        }
+    }
+}
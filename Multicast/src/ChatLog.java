@@ -0,0 +1,304 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Append-only chat history on disk, split into segments that are read and
+ * written through memory maps, so days of chat cost page cache, not heap.
+ *
+ * A segment is named after its first sequence number. Records follow each
+ * other from offset 0:
+ *   int size (whole record), long seq, long timestamp, UTF-8 line
+ * and a size of 0 ends the data. The active segment is mapped at its full
+ * size up front; a full one is cut to what it holds and a new one started.
+ *
+ * Next to each segment an .idx file keeps a sparse index, one (seq,
+ * timestamp, offset) triple for the first record and then about every
+ * INDEX_INTERVAL bytes, so a lookup by either key is a binary search plus a
+ * short scan, and opening the log reads the indexes and scans only the tail
+ * of the last segment.
+ */
+public class ChatLog implements AutoCloseable {
+    public interface Visitor {
+        /** False to stop. */
+        boolean visit(long seq, long timestamp, String line);
+    }
+
+    private static final int SEGMENT_BYTES = 8 << 20;
+    private static final int INDEX_INTERVAL = 4096;
+    private static final int HEADER = 4 + 8 + 8;
+    private static final int INDEX_ENTRY = 8 + 8 + 8;
+
+    private static final class Segment {
+        final long base;
+        final Path path;
+        final FileChannel index;
+        MappedByteBuffer map;
+        int end;
+        // sparse index, entries [0, indexed)
+        long[] seqs = new long[16];
+        long[] times = new long[16];
+        int[] offsets = new int[16];
+        int indexed;
+
+        Segment(long base, Path path, FileChannel index) {
+            this.base = base;
+            this.path = path;
+            this.index = index;
+        }
+
+        void addIndex(long seq, long ts, int offset) {
+            if (indexed == seqs.length) {
+                seqs = Arrays.copyOf(seqs, indexed * 2);
+                times = Arrays.copyOf(times, indexed * 2);
+                offsets = Arrays.copyOf(offsets, indexed * 2);
+            }
+            seqs[indexed] = seq;
+            times[indexed] = ts;
+            offsets[indexed] = offset;
+            indexed++;
+        }
+    }
+
+    private final Path dir;
+    private final List<Segment> segments = new ArrayList<>();
+    private final ByteBuffer indexEntry = ByteBuffer.allocate(INDEX_ENTRY);
+    private long lastSeq;
+    private int lastIndexed;   // offset of the last index entry in the active segment
+
+    private ChatLog(Path dir) {
+        this.dir = dir;
+    }
+
+    /** Opens the log in {@code dir}, creating it if needed, and finds where the last run stopped. */
+    public static ChatLog open(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        ChatLog log = new ChatLog(dir);
+        List<Long> bases = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.map(p -> p.getFileName().toString())
+                    // only segments, named by create(); other .log files in the directory are not ours
+                    .filter(n -> n.length() == 24 && n.endsWith(".log") && n.chars().limit(20).allMatch(c -> c >= '0' && c <= '9'))
+                    .forEach(n -> bases.add(Long.parseLong(n.substring(0, n.length() - 4))));
+        }
+        bases.sort(null);
+        for (int i = 0; i < bases.size(); i++) {
+            log.segments.add(log.load(bases.get(i), i == bases.size() - 1));
+        }
+        if (log.segments.isEmpty()) {
+            log.segments.add(log.create(1));
+        } else {
+            Segment last = log.active();
+            log.lastSeq = last.indexed == 0 ? last.base - 1 : log.scanTail(last);
+        }
+        return log;
+    }
+
+    public synchronized long firstSeq() {
+        for (Segment s : segments) {
+            if (s.end > 0) return s.base;
+        }
+        return lastSeq + 1;
+    }
+
+    public synchronized long lastSeq() {
+        return lastSeq;
+    }
+
+    public synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    /** Appends one line and returns its sequence number. */
+    public synchronized long append(long ts, String line) throws IOException {
+        byte[] text = line.getBytes(StandardCharsets.UTF_8);
+        int size = HEADER + text.length;
+        // a record never spans segments; the 4 bytes left over hold the end mark
+        if (size + 4 > SEGMENT_BYTES) throw new IllegalArgumentException("line too long: " + text.length + " bytes");
+        Segment s = active();
+        if (s.end + size + 4 > SEGMENT_BYTES) s = roll();
+
+        long seq = lastSeq + 1;
+        int at = s.end;
+        s.map.putLong(at + 4, seq);
+        s.map.putLong(at + 12, ts);
+        s.map.put(at + HEADER, text);
+        // size last: a record whose size is there was written whole
+        s.map.putInt(at, size);
+        s.end = at + size;
+        lastSeq = seq;
+
+        if (s.indexed == 0 || at - lastIndexed >= INDEX_INTERVAL) writeIndex(s, seq, ts, at);
+        return seq;
+    }
+
+    /** Visits the records after {@code seq} in order, until the visitor says stop. */
+    public synchronized void forEachAfter(long seq, Visitor visitor) {
+        int si = segmentOf(seq + 1);
+        for (int i = Math.max(si, 0); i < segments.size(); i++) {
+            Segment s = segments.get(i);
+            if (s.indexed == 0) continue;
+            int at = 0;
+            if (i == si) {
+                // last index entry at or before the wanted record
+                int k = Arrays.binarySearch(s.seqs, 0, s.indexed, seq + 1);
+                at = s.offsets[k >= 0 ? k : Math.max(0, -k - 2)];
+            }
+            while (at < s.end) {
+                int size = s.map.getInt(at);
+                // end mark, or the zeros of a segment not cut to size before a crash
+                if (size < HEADER) break;
+                long recSeq = s.map.getLong(at + 4);
+                if (recSeq > seq && !visitor.visit(recSeq, s.map.getLong(at + 12), line(s, at, size))) return;
+                at += size;
+            }
+        }
+    }
+
+    /** Sequence number of the first record written at or after {@code ts}, or lastSeq() + 1 if none. */
+    public synchronized long firstSeqSince(long ts) {
+        for (int i = 0; i < segments.size(); i++) {
+            Segment s = segments.get(i);
+            if (s.indexed == 0) continue;
+            boolean lastOne = i == segments.size() - 1 || segments.get(i + 1).indexed == 0;
+            if (!lastOne && segments.get(i + 1).times[0] <= ts) continue;
+            // last index entry before ts; several can share a millisecond
+            int lo = 0, hi = s.indexed;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (s.times[mid] < ts) lo = mid + 1;
+                else hi = mid;
+            }
+            int at = s.offsets[Math.max(0, lo - 1)];
+            while (at < s.end && s.map.getInt(at) >= HEADER) {
+                if (s.map.getLong(at + 12) >= ts) return s.map.getLong(at + 4);
+                at += s.map.getInt(at);
+            }
+        }
+        return lastSeq + 1;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        active().map.force();
+        for (Segment s : segments) s.index.close();
+    }
+
+    private Segment active() {
+        return segments.get(segments.size() - 1);
+    }
+
+    // index of the segment holding seq, -1 if it is before the first one
+    private int segmentOf(long seq) {
+        int lo = 0, hi = segments.size() - 1, found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (segments.get(mid).base <= seq) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    private String line(Segment s, int at, int size) {
+        byte[] text = new byte[size - HEADER];
+        s.map.get(at + HEADER, text);
+        return new String(text, StandardCharsets.UTF_8);
+    }
+
+    private Segment create(long base) throws IOException {
+        Segment s = new Segment(base, dir.resolve(String.format("%020d.log", base)), openIndex(base));
+        s.index.truncate(0);
+        s.map = map(s.path, FileChannel.MapMode.READ_WRITE, SEGMENT_BYTES);
+        return s;
+    }
+
+    private Segment load(long base, boolean active) throws IOException {
+        Segment s = new Segment(base, dir.resolve(String.format("%020d.log", base)), openIndex(base));
+        ByteBuffer buf = ByteBuffer.allocate((int) s.index.size() / INDEX_ENTRY * INDEX_ENTRY);
+        s.index.read(buf, 0);
+        buf.flip();
+        while (buf.remaining() >= INDEX_ENTRY) s.addIndex(buf.getLong(), buf.getLong(), (int) buf.getLong());
+        if (active) {
+            s.map = map(s.path, FileChannel.MapMode.READ_WRITE, SEGMENT_BYTES);
+        } else {
+            s.map = map(s.path, FileChannel.MapMode.READ_ONLY, Files.size(s.path));
+            s.end = s.map.capacity();
+        }
+        return s;
+    }
+
+    // Finds the end of the active segment from its last index entry that still matches the data; returns the last seq
+    private long scanTail(Segment s) throws IOException {
+        while (s.indexed > 0) {
+            int at = s.offsets[s.indexed - 1];
+            if (at + HEADER <= s.map.capacity() && s.map.getInt(at) >= HEADER
+                    && s.map.getLong(at + 4) == s.seqs[s.indexed - 1]) break;
+            // the index got ahead of the data before a crash
+            s.indexed--;
+            s.index.truncate((long) s.indexed * INDEX_ENTRY);
+        }
+        if (s.indexed == 0) return s.base - 1;
+
+        int at = s.offsets[s.indexed - 1];
+        long seq = s.seqs[s.indexed - 1] - 1;
+        while (at + HEADER <= s.map.capacity()) {
+            int size = s.map.getInt(at);
+            if (size < HEADER || at + size > s.map.capacity() || s.map.getLong(at + 4) != seq + 1) break;
+            seq++;
+            at += size;
+        }
+        s.end = at;
+        lastIndexed = s.offsets[s.indexed - 1];
+        // a torn record past the end would read as data once the next one is written behind it
+        if (at + 4 <= s.map.capacity()) s.map.putInt(at, 0);
+        return seq;
+    }
+
+    private Segment roll() throws IOException {
+        Segment full = active();
+        full.map.force();
+        try (FileChannel ch = FileChannel.open(full.path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ch.truncate(full.end);
+        }
+        full.map = map(full.path, FileChannel.MapMode.READ_ONLY, full.end);
+        Segment next = create(lastSeq + 1);
+        segments.add(next);
+        return next;
+    }
+
+    private void writeIndex(Segment s, long seq, long ts, int offset) throws IOException {
+        indexEntry.clear();
+        indexEntry.putLong(seq).putLong(ts).putLong(offset).flip();
+        s.index.write(indexEntry, (long) s.indexed * INDEX_ENTRY);
+        s.addIndex(seq, ts, offset);
+        lastIndexed = offset;
+    }
+
+    private FileChannel openIndex(long base) throws IOException {
+        return FileChannel.open(dir.resolve(String.format("%020d.idx", base)),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static MappedByteBuffer map(Path path, FileChannel.MapMode mode, long size) throws IOException {
+        StandardOpenOption[] options = mode == FileChannel.MapMode.READ_ONLY
+                ? new StandardOpenOption[] {StandardOpenOption.READ}
+                : new StandardOpenOption[] {StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE};
+        // the mapping stays valid after the channel is closed
+        try (FileChannel ch = FileChannel.open(path, options)) {
+            return ch.map(mode, 0, size);
+        }
+    }
+}
@@ -1,17 +1,20 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.time.Instant;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Multicast chat + history + coordinated shutdown (LAN-only via TTL=1).
  *
  * Usage:
  *   javac MulticastChatPeer.java
- *   java MulticastChatPeer <PEER_ID> [group=230.0.0.1] [port=50000] [ifaceName]
+ *   java MulticastChatPeer <PEER_ID> [group=230.0.0.1] [port=50000] [ifaceName] [--log <dir>] [--reliable] [--batch-us <µs>]
  *
  * Examples (run in terminale diferite):
  *   java MulticastChatPeer A
@@ -20,31 +23,105 @@ import java.util.concurrent.atomic.AtomicBoolean;
  *
  * Comenzi în consolă:
  *   orice text        -> trimite mesaje către grup
- *   /get <ID>         -> cere ultimul istoric de la peerul <ID>
+ *   /get <ID> [since] -> cere istoricul peerului <ID> de după numărul <since>
+ *                        (implicit: după ultima intrare primită deja de la el)
+ *   /log [minutes]    -> afișează local ce s-a scris în ultimele minute (cu --log)
+ *   /stats            -> contoare: batching și modul --reliable
  *   /quit             -> iese local (test rapid)
+ *
+ * History entries are numbered per peer. A request goes to the group from
+ * this peer's reply socket; the answer comes back by unicast to that socket
+ * only, as pages that each fit one datagram:
+ *   HISTORY;oldestKept;latest;final
+ *   seq<TAB>entry
+ *   ...
+ * so a peer that is behind by three entries gets three entries. One answer
+ * is at most MAX_ANSWER_PAGES pages; /get again continues from there.
+ * Entries are shown in order only: what comes past a lost page waits, the
+ * gap is reported, and /get asks again from the gap.
+ *
+ * With --log the history goes to a ChatLog on disk instead of the last
+ * HISTORY_SIZE entries in memory: it survives restarts, numbering goes on
+ * where it stopped, and requests can reach back as far as the log does.
+ *
+ * With --reliable chat messages go out as RCHAT, numbered per sender, and
+ * ReliableMulticast repairs losses on NAKs; see there. Peers without it
+ * still show RCHAT messages, as they arrive.
+ *
+ * With --batch-us, messages to the group wait up to that many microseconds
+ * for others to share their datagram, up to BATCH_BYTES; a full batch goes
+ * at once. Receivers unpack batches without noticing.
  */
 public class MulticastChatPeer {
     // Config implicit (poți schimba după nevoie)
     private static final String DEFAULT_GROUP = "230.0.0.1"; // adresa multicast din clasa D
     private static final int DEFAULT_PORT = 50000;
     private static final int HISTORY_SIZE = 50;
+    // one history page per datagram, below the Ethernet MTU
+    private static final int MAX_PAGE_BYTES = 1200;
+    private static final int MAX_ANSWER_PAGES = 16;
+    private static final int BATCH_BYTES = 1400;
 
-    // Tipuri de mesaje
-    private enum Type { HELLO, CHAT, HISTORY_REQUEST, HISTORY_RESPONSE, SHUTDOWN }
+    // Tipuri de mesaje; the order is the opcode on the wire
+    enum Type { HELLO, CHAT, HISTORY_REQUEST, HISTORY_RESPONSE, SHUTDOWN, RCHAT, NAK, SEQ, BATCH }
 
     private final String peerId;
     private final InetAddress group;
     private final int port;
+    private final InetSocketAddress groupAddress;
     private final MulticastSocket socket;
+    // encoding reuses one buffer and one packet, guarded by the codec
+    private final ChatCodec codec;
+    private final DatagramPacket outPacket = new DatagramPacket(new byte[0], 0);
+    // batching, guarded by the codec as well; batchNanos 0: every message alone
+    private final long batchNanos;
+    private long batchDeadline = Long.MAX_VALUE;
+    private volatile Thread batchFlusher;
+    private long batchesOut, batchedOut, fullFlushes, timerFlushes;
+    private final LongAdder batchesIn = new LongAdder();
+    private final LongAdder batchedIn = new LongAdder();
+    // ephemeral port: sends history requests, receives the unicast pages that answer them
+    private final MulticastSocket replySocket;
     private final Set<String> knownPeers = ConcurrentHashMap.newKeySet();
-    private final Deque<String> history = new ArrayDeque<>(HISTORY_SIZE);
+    private final Deque<Entry> history = new ArrayDeque<>(HISTORY_SIZE);
+    private long historySeq;
+    private final ChatLog log;   // null: history only in memory
+    private final ReliableMulticast reliable;   // null: chat is fire and forget
+    private volatile Thread reliableTimer;
+    // per peer asked: how far its history has come in, in order
+    private final Map<String, HistoryFetch> historyFetches = new ConcurrentHashMap<>();
+
+    private record Entry(long seq, String line) {}
+
+    // guarded by itself: pages come on the reply thread, /get on the console
+    private static final class HistoryFetch {
+        long have;          // every entry up to here was shown
+        boolean open;       // header printed, answer not complete yet
+        boolean finished;   // the final page of the answer came
+        long latest;
+        final TreeMap<Long, String> ahead = new TreeMap<>();   // came past a missing page
+    }
     private final AtomicBoolean shuttingDown = new AtomicBoolean(false);
     private final AtomicBoolean sentShutdown = new AtomicBoolean(false);
 
-    public MulticastChatPeer(String peerId, String groupAddr, int port, String ifaceName) throws Exception {
+    public MulticastChatPeer(String peerId, String groupAddr, int port, String ifaceName, Path logDir,
+                             boolean reliableChat, long batchMicros) throws Exception {
         this.peerId = Objects.requireNonNull(peerId);
         this.group = InetAddress.getByName(groupAddr);
         this.port = port;
+        this.groupAddress = new InetSocketAddress(group, port);
+        this.codec = new ChatCodec(peerId);
+        this.batchNanos = batchMicros * 1000;
+
+        if (logDir != null) {
+            long start = System.nanoTime();
+            log = ChatLog.open(logDir);
+            historySeq = log.lastSeq();
+            System.out.printf("[SYSTEM] History log %s: #%d..#%d in %d segments, opened in %d ms%n", logDir,
+                    log.firstSeq(), historySeq, log.segmentCount(), (System.nanoTime() - start) / 1_000_000);
+        } else {
+            log = null;
+        }
 
         socket = new MulticastSocket(port);
 
@@ -60,41 +137,309 @@ public class MulticastChatPeer {
         } else {
             socket.joinGroup(group);
         }
+
+        replySocket = new MulticastSocket(0);
+        replySocket.setTimeToLive(1);
+        if (ifaceName != null) replySocket.setNetworkInterface(NetworkInterface.getByName(ifaceName));
+
+        reliable = !reliableChat ? null : new ReliableMulticast(peerId, new ReliableMulticast.Transport() {
+            @Override
+            public void data(long session, long seq, String text) {
+                trySend(Type.RCHAT, session, seq, text);
+            }
+
+            @Override
+            public void nak(String payload) {
+                trySend(Type.NAK, 0, 0, payload);
+            }
+
+            @Override
+            public void seq(String payload) {
+                trySend(Type.SEQ, 0, 0, payload);
+            }
+        }, new ReliableMulticast.Listener() {
+            @Override
+            public void delivered(String sender, String text) {
+                chat(sender, text);
+            }
+
+            @Override
+            public void lost(String sender, long count) {
+                System.out.printf("[SYSTEM] %d messages from %s were lost%n", count, sender);
+            }
+        });
+    }
+
+    /**
+     * A received message, reused by each receiver thread for every datagram.
+     * The payload is decoded to text on first use only.
+     */
+    static final class Msg {
+        Type type;
+        String sender;   // interned by the codec
+        long ts;
+        long session, seq;   // RCHAT only
+        private byte[] data;
+        private int offset, length;
+        private String payload;
+        // inside a batch: where the next message starts, and where the batch ends
+        int batchAt, batchEnd;
+
+        void set(byte[] data, int offset, int length) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            this.payload = null;
+        }
+
+        byte[] data() {
+            return data;
+        }
+
+        void set(String payload) {
+            this.data = null;
+            this.payload = payload;
+        }
+
+        String payload() {
+            if (payload == null) payload = new String(data, offset, length, StandardCharsets.UTF_8);
+            return payload;
+        }
+    }
+
+    private void send(Type type, CharSequence payload) throws IOException {
+        send(socket, groupAddress, type, payload);
+    }
+
+    private void send(DatagramSocket via, SocketAddress to, Type type, CharSequence payload) throws IOException {
+        send(via, to, type, 0, 0, payload);
+    }
+
+    private void send(DatagramSocket via, SocketAddress to, Type type, long session, long seq, CharSequence payload) throws IOException {
+        synchronized (codec) {
+            long ts = System.currentTimeMillis();
+            if (batchNanos > 0 && via == socket) {
+                if (codec.addToBatch(type, ts, session, seq, payload, BATCH_BYTES)) {
+                    batchAdded();
+                    return;
+                }
+                if (codec.batched() > 0) {
+                    fullFlushes++;
+                    flushBatch();
+                    if (codec.addToBatch(type, ts, session, seq, payload, BATCH_BYTES)) {
+                        batchAdded();
+                        return;
+                    }
+                }
+                // larger than a batch can be: alone
+            }
+            ByteBuffer b = codec.encode(type, ts, session, seq, payload);
+            outPacket.setData(b.array(), 0, b.limit());
+            outPacket.setSocketAddress(to);
+            via.send(outPacket);
+        }
     }
 
-    // Serializare simplă: type|sender|timestamp|payload
-    private byte[] pack(Type type, String payload) {
-        String wire = type + "|" + peerId + "|" + Instant.now().toEpochMilli() + "|" + (payload == null ? "" : payload);
-        return wire.getBytes(StandardCharsets.UTF_8);
+    // holding the codec
+    private void batchAdded() {
+        if (codec.batched() == 1) {
+            batchDeadline = System.nanoTime() + batchNanos;
+            LockSupport.unpark(batchFlusher);
+        }
     }
 
-    private static class Msg {
-        final Type type;
-        final String sender;
-        final long ts;
-        final String payload;
-        Msg(Type t, String s, long ts, String p) { this.type = t; this.sender = s; this.ts = ts; this.payload = p; }
+    // holding the codec
+    private void flushBatch() throws IOException {
+        int n = codec.batched();
+        ByteBuffer b = codec.takeBatch();
+        batchDeadline = Long.MAX_VALUE;
+        batchesOut++;
+        batchedOut += n;
+        outPacket.setData(b.array(), 0, b.limit());
+        outPacket.setSocketAddress(groupAddress);
+        socket.send(outPacket);
     }
 
-    private Msg unpack(DatagramPacket p) {
-        String s = new String(p.getData(), p.getOffset(), p.getLength(), StandardCharsets.UTF_8);
-        String[] parts = s.split("\\|", 4);
-        if (parts.length < 4) return null;
+    private void startBatchFlusher() {
+        Thread t = new Thread(() -> {
+            while (!socket.isClosed()) {
+                long wait;
+                synchronized (codec) {
+                    long now = System.nanoTime();
+                    if (codec.batched() > 0 && now - batchDeadline >= 0) {
+                        timerFlushes++;
+                        try {
+                            flushBatch();
+                        } catch (IOException e) {
+                            if (!socket.isClosed()) System.err.println("[WARN] batch: " + e.getMessage());
+                        }
+                    }
+                    wait = batchDeadline == Long.MAX_VALUE ? 1_000_000_000L : batchDeadline - now;
+                }
+                LockSupport.parkNanos(wait);
+            }
+        }, "BatchFlusher");
+        t.setDaemon(true);
+        batchFlusher = t;
+        t.start();
+    }
+
+    private void printStats() {
+        synchronized (codec) {
+            if (batchNanos == 0) {
+                System.out.println("Batching off, start with --batch-us <µs>");
+            } else {
+                System.out.printf("Batching (%d µs, %d B): %d messages in %d datagrams, %.1f per datagram, %d flushed full, %d on the timer%n",
+                        batchNanos / 1000, BATCH_BYTES, batchedOut, batchesOut,
+                        batchesOut == 0 ? 0.0 : (double) batchedOut / batchesOut, fullFlushes, timerFlushes);
+            }
+        }
+        long in = batchesIn.sum();
+        System.out.printf("Received %d batches with %d messages, %.1f per batch%n",
+                in, batchedIn.sum(), in == 0 ? 0.0 : (double) batchedIn.sum() / in);
+        if (reliable != null) reliable.dump();
+    }
+
+    // from inside ReliableMulticast: a failed send is a loss it repairs like any other
+    private void trySend(Type type, long session, long seq, String payload) {
         try {
-            return new Msg(Type.valueOf(parts[0]), parts[1], Long.parseLong(parts[2]), parts[3]);
-        } catch (Exception e) {
-            return null;
+            send(socket, groupAddress, type, session, seq, payload);
+        } catch (IOException e) {
+            System.err.println("[WARN] send " + type + ": " + e.getMessage());
         }
     }
 
-    private void send(Type type, String payload) throws IOException {
-        byte[] data = pack(type, payload);
-        socket.send(new DatagramPacket(data, data.length, group, port));
+    private void chat(String sender, String text) {
+        System.out.printf("[%s] %s%n", sender, text);
+        // own messages come back by loopback, the console already recorded them
+        if (!sender.equals(peerId)) addToHistory(String.format("[%s] %s", sender, text));
     }
 
     private synchronized void addToHistory(String msg) {
+        // one entry per line on the wire
+        String line = msg.replace('\n', ' ');
+        if (log != null) {
+            try {
+                historySeq = log.append(System.currentTimeMillis(), line);
+            } catch (IOException e) {
+                System.err.println("[WARN] history log: " + e.getMessage());
+            }
+            return;
+        }
         if (history.size() == HISTORY_SIZE) history.removeFirst();
-        history.addLast(msg);
+        history.addLast(new Entry(++historySeq, line));
+    }
+
+    private void requestHistory(String target, long since) throws IOException {
+        // without a number the request reads like an old one, which old peers still answer
+        String payload = since > 0 ? target + ";" + since : target;
+        send(replySocket, groupAddress, Type.HISTORY_REQUEST, payload);
+    }
+
+    /** Entries after {@code since}, paged, by unicast to whoever asked. */
+    private void sendHistory(SocketAddress to, long since) throws IOException {
+        List<Entry> missing = new ArrayList<>();
+        long oldest, latest;
+        // roughly what fits in one answer; the exact page breaks come below
+        int budget = MAX_ANSWER_PAGES * MAX_PAGE_BYTES;
+        synchronized (this) {
+            if (log != null) {
+                int[] left = {budget};
+                log.forEachAfter(since, (seq, ts, line) -> {
+                    missing.add(new Entry(seq, line));
+                    left[0] -= line.length() + 8;
+                    return left[0] > 0;
+                });
+                oldest = log.firstSeq();
+            } else {
+                for (Entry e : history) {
+                    if (e.seq > since) missing.add(e);
+                }
+                oldest = history.isEmpty() ? historySeq + 1 : history.peekFirst().seq;
+            }
+            latest = historySeq;
+        }
+
+        StringBuilder page = new StringBuilder();
+        int bytes = 0;
+        int i = 0;
+        do {
+            page.setLength(0);
+            bytes = 0;
+            // at least one entry per page, even one longer than a page
+            while (i < missing.size()) {
+                String line = "\n" + missing.get(i).seq + "\t" + missing.get(i).line;
+                int len = line.getBytes(StandardCharsets.UTF_8).length;
+                if (bytes > 0 && bytes + len > MAX_PAGE_BYTES) break;
+                page.append(line);
+                bytes += len;
+                i++;
+            }
+            page.insert(0, "HISTORY;" + oldest + ";" + latest + ";" + (i == missing.size() ? 1 : 0));
+            send(replySocket, to, Type.HISTORY_RESPONSE, page);
+        } while (i < missing.size());
+    }
+
+    private void onHistoryPage(Msg m) {
+        if (!m.payload().startsWith("HISTORY;")) {
+            // whole history from an older peer
+            System.out.println("---- ISTORIC PRIMIT ----");
+            System.out.println(m.payload());
+            System.out.println("------------------------");
+            return;
+        }
+        String[] lines = m.payload().split("\n");
+        String[] header = lines[0].split(";");
+        long oldest = Long.parseLong(header[1]);
+        long latest = Long.parseLong(header[2]);
+        boolean last = header[3].equals("1");
+
+        String from = m.sender;
+        HistoryFetch f = historyFetches.computeIfAbsent(from, k -> new HistoryFetch());
+        synchronized (f) {
+            if (!f.open) {
+                f.open = true;
+                System.out.printf("---- History of %s, after #%d ----%n", from, f.have);
+            }
+            if (f.have + 1 < oldest && oldest <= latest) {
+                System.out.printf("(#%d..#%d are no longer kept)%n", f.have + 1, oldest - 1);
+                f.have = oldest - 1;
+                f.ahead.headMap(oldest).clear();
+            }
+            f.latest = Math.max(f.latest, latest);
+            for (int i = 1; i < lines.length; i++) {
+                int tab = lines[i].indexOf('\t');
+                if (tab < 0) continue;
+                long seq = Long.parseLong(lines[i].substring(0, tab));
+                // pages of an earlier, repeated request
+                if (seq > f.have) f.ahead.putIfAbsent(seq, lines[i].substring(tab + 1));
+            }
+            // pages can be lost or overtake each other; only what follows on from have is shown
+            String line;
+            while ((line = f.ahead.remove(f.have + 1)) != null) {
+                f.have++;
+                System.out.printf("#%d %s%n", f.have, line);
+            }
+            if (last) f.finished = true;
+            if (!f.finished) return;
+            if (!f.ahead.isEmpty()) {
+                // kept open: a late page still fills the gap, /get asks for it again
+                System.out.printf("---- %s: #%d..#%d did not arrive, /get %s for them ----%n", from, f.have + 1, f.ahead.firstKey() - 1, from);
+                return;
+            }
+            f.open = false;
+            if (f.have < f.latest) System.out.printf("---- %s: up to #%d of #%d, /get %s for the rest ----%n", from, f.have, f.latest, from);
+            else System.out.printf("---- %s: up to date at #%d ----%n", from, f.latest);
+        }
+    }
+
+    // -1 if not a number >= 0; history numbers and /log minutes
+    private static long parseNonNegative(String s) {
+        try {
+            return Math.max(-1, Long.parseLong(s));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
     }
 
     private boolean isLowestKnownId() {
@@ -104,49 +449,89 @@ public class MulticastChatPeer {
         return peerId.equals(ids.stream().min(String::compareTo).orElse(peerId));
     }
 
+    private void handle(Msg m, SocketAddress from) throws IOException {
+        // notează peer
+        knownPeers.add(m.sender);
+
+        switch (m.type) {
+            case HELLO -> {
+                System.out.printf("[%s] %s joined. Payload: %s%n", m.sender, m.sender, m.payload());
+            }
+            case CHAT -> chat(m.sender, m.payload());
+            case RCHAT -> {
+                if (reliable == null) {
+                    chat(m.sender, m.payload());
+                } else if (m.sender.equals(peerId)) {
+                    // repairs of our own messages come back too, and not necessarily in order
+                    if (reliable.firstEcho(m.session, m.seq)) chat(m.sender, m.payload());
+                } else {
+                    reliable.onData(m.sender, m.session, m.seq, m.payload(), System.currentTimeMillis());
+                    LockSupport.unpark(reliableTimer);
+                }
+            }
+            case NAK -> {
+                if (reliable != null) {
+                    reliable.onNak(m.sender, m.payload(), System.currentTimeMillis());
+                    LockSupport.unpark(reliableTimer);
+                }
+            }
+            case SEQ -> {
+                if (reliable != null) {
+                    reliable.onSeq(m.sender, m.payload(), System.currentTimeMillis());
+                    LockSupport.unpark(reliableTimer);
+                }
+            }
+            case HISTORY_REQUEST -> {
+                // payload: targetId[;since] (cel care trebuie să răspundă)
+                String[] req = m.payload().trim().split(";", 2);
+                if (peerId.equalsIgnoreCase(req[0])) {
+                    long since = req.length > 1 ? parseNonNegative(req[1].trim()) : 0;
+                    if (since >= 0) sendHistory(from, since);
+                }
+            }
+            case HISTORY_RESPONSE -> {
+                System.out.println("---- ISTORIC PRIMIT ----");
+                System.out.println(m.payload());
+                System.out.println("------------------------");
+            }
+            case SHUTDOWN -> {
+                System.out.printf("[SYSTEM] Shutdown requested by %s%n", m.sender);
+                initiateShutdown();
+            }
+        }
+    }
+
     private void startReceiver() {
         Thread t = new Thread(() -> {
-            byte[] buf = new byte[8192];
+            byte[] buf = new byte[ChatCodec.MAX_DATAGRAM];
+            DatagramPacket in = new DatagramPacket(buf, buf.length);
+            Msg m = new Msg();
             while (!socket.isClosed()) {
                 try {
-                    DatagramPacket in = new DatagramPacket(buf, buf.length);
+                    in.setLength(buf.length);
                     socket.receive(in);
-                    Msg m = unpack(in);
-                    if (m == null) continue;
-
-                    // notează peer
-                    knownPeers.add(m.sender);
+                    if (!codec.decode(buf, 0, in.getLength(), m)) continue;
 
-                    switch (m.type) {
-                        case HELLO -> {
-                            System.out.printf("[%s] %s joined. Payload: %s%n", m.sender, m.sender, m.payload);
-                        }
-                        case CHAT -> {
-                            System.out.printf("[%s] %s%n", m.sender, m.payload);
-                            addToHistory(String.format("[%s] %s", m.sender, m.payload));
-                        }
-                        case HISTORY_REQUEST -> {
-                            // payload: targetId (cel care trebuie să răspundă)
-                            if (peerId.equalsIgnoreCase(m.payload.trim())) {
-                                // răspunde cu lista (linie cu linie)
-                                StringBuilder sb = new StringBuilder("HISTORY for ").append(peerId);
-                                for (String h : history) sb.append("\n").append(h);
-                                send(Type.HISTORY_RESPONSE, sb.toString());
-                            }
-                        }
-                        case HISTORY_RESPONSE -> {
-                            System.out.println("---- ISTORIC PRIMIT ----");
-                            System.out.println(m.payload);
-                            System.out.println("------------------------");
-                        }
-                        case SHUTDOWN -> {
-                            System.out.printf("[SYSTEM] Shutdown requested by %s%n", m.sender);
-                            initiateShutdown();
+                    boolean batch = m.batchEnd > 0;
+                    int n = 0;
+                    do {
+                        n++;
+                        // one bad message does not take the rest of its batch with it
+                        try {
+                            handle(m, in.getSocketAddress());
+                        } catch (RuntimeException e) {
+                            System.err.println("[WARN] bad message: " + e);
                         }
+                    } while (codec.next(m));
+                    if (batch) {
+                        batchesIn.increment();
+                        batchedIn.add(n);
                     }
                 } catch (IOException e) {
                     if (!socket.isClosed()) e.printStackTrace();
                     break;
+                } catch (RuntimeException e) {
+                    System.err.println("[WARN] bad datagram: " + e);
                 }
             }
         }, "Receiver");
@@ -154,6 +539,42 @@ public class MulticastChatPeer {
         t.start();
     }
 
+    private void startReplyReceiver() {
+        Thread t = new Thread(() -> {
+            byte[] buf = new byte[ChatCodec.MAX_DATAGRAM];
+            DatagramPacket in = new DatagramPacket(buf, buf.length);
+            Msg m = new Msg();
+            while (!replySocket.isClosed()) {
+                try {
+                    in.setLength(buf.length);
+                    replySocket.receive(in);
+                    if (codec.decode(buf, 0, in.getLength(), m) && m.type == Type.HISTORY_RESPONSE) onHistoryPage(m);
+                } catch (IOException e) {
+                    if (!replySocket.isClosed()) e.printStackTrace();
+                    break;
+                } catch (RuntimeException e) {
+                    System.err.println("[WARN] bad history page: " + e);
+                }
+            }
+        }, "ReplyReceiver");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // NAKs and sequence announcements when they are due, woken early by whatever may move them
+    private void startReliableTimer() {
+        Thread t = new Thread(() -> {
+            while (!socket.isClosed()) {
+                long now = System.currentTimeMillis();
+                long next = reliable.tick(now);
+                LockSupport.parkNanos(Math.min(next - now, 1000) * 1_000_000);
+            }
+        }, "ReliableTimer");
+        t.setDaemon(true);
+        reliableTimer = t;
+        t.start();
+    }
+
     private void startConsole() {
         Thread t = new Thread(() -> {
             try (BufferedReader br = new BufferedReader(new InputStreamReader(System.in))) {
@@ -165,11 +586,37 @@ public class MulticastChatPeer {
                     if (line.equalsIgnoreCase("/quit")) {
                         initiateShutdown();
                         break;
+                    } else if (line.equalsIgnoreCase("/stats")) {
+                        printStats();
+                    } else if (line.equalsIgnoreCase("/log") || line.toLowerCase(Locale.ROOT).startsWith("/log ")) {
+                        long minutes = line.length() > 4 ? parseNonNegative(line.substring(5).trim()) : 10;
+                        if (log == null) System.out.println("No history log, start with --log <dir>");
+                        else if (minutes < 0) System.out.println("Usage: /log [minutes]");
+                        else printLog(minutes);
                     } else if (line.toLowerCase(Locale.ROOT).startsWith("/get ")) {
-                        String target = line.substring(5).trim();
-                        send(Type.HISTORY_REQUEST, target);
+                        String[] args = line.substring(5).trim().split("\\s+");
+                        String target = args[0];
+                        HistoryFetch f = historyFetches.computeIfAbsent(target, k -> new HistoryFetch());
+                        long since;
+                        synchronized (f) {
+                            since = args.length > 1 ? parseNonNegative(args[1]) : f.have;
+                            if (since >= 0) {
+                                // an explicit number shows those entries again; a new answer starts over
+                                f.have = since;
+                                f.open = f.finished = false;
+                                f.latest = 0;
+                                f.ahead.clear();
+                            }
+                        }
+                        if (since < 0) System.out.println("Usage: /get <ID> [since]");
+                        else requestHistory(target, since);
                     } else {
-                        send(Type.CHAT, line);
+                        if (reliable != null) {
+                            reliable.send(line, System.currentTimeMillis());
+                            LockSupport.unpark(reliableTimer);
+                        } else {
+                            send(Type.CHAT, line);
+                        }
                         addToHistory("[" + peerId + "] " + line);
                     }
                 }
@@ -181,6 +628,14 @@ public class MulticastChatPeer {
         t.start();
     }
 
+    private void printLog(long minutes) {
+        long from = log.firstSeqSince(System.currentTimeMillis() - minutes * 60_000);
+        log.forEachAfter(from - 1, (seq, ts, line) -> {
+            System.out.printf("#%d %tT %s%n", seq, ts, line);
+            return true;
+        });
+    }
+
     private void scheduleShutdownCoordinator() {
         // 5–20s delay
         int delay = ThreadLocalRandom.current().nextInt(5, 21);
@@ -202,10 +657,23 @@ public class MulticastChatPeer {
 
     private void initiateShutdown() {
         if (shuttingDown.compareAndSet(false, true)) {
+            synchronized (codec) {
+                try {
+                    if (codec.batched() > 0) flushBatch();
+                } catch (IOException ignored) {}
+            }
             try {
                 socket.leaveGroup(group);
             } catch (Exception ignored) {}
             socket.close();
+            replySocket.close();
+            if (log != null) {
+                synchronized (this) {
+                    try {
+                        log.close();
+                    } catch (IOException ignored) {}
+                }
+            }
             System.out.println("[SYSTEM] Exiting...");
             System.exit(0);
         }
@@ -213,6 +681,9 @@ public class MulticastChatPeer {
 
     public void run() throws Exception {
         startReceiver();
+        startReplyReceiver();
+        if (reliable != null) startReliableTimer();
+        if (batchNanos > 0) startBatchFlusher();
         startConsole();
         announceHello();
         scheduleShutdownCoordinator();
@@ -221,8 +692,19 @@ public class MulticastChatPeer {
     }
 
     public static void main(String[] args) throws Exception {
+        Path logDir = null;
+        boolean reliableChat = false;
+        long batchMicros = 0;
+        List<String> rest = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--log") && i + 1 < args.length) logDir = Path.of(args[++i]);
+            else if (args[i].equals("--reliable")) reliableChat = true;
+            else if (args[i].equals("--batch-us") && i + 1 < args.length) batchMicros = Long.parseLong(args[++i]);
+            else rest.add(args[i]);
+        }
+        args = rest.toArray(new String[0]);
         if (args.length < 1) {
-            System.err.println("Usage: java MulticastChatPeer <PEER_ID> [group=230.0.0.1] [port=50000] [ifaceName]");
+            System.err.println("Usage: java MulticastChatPeer <PEER_ID> [group=230.0.0.1] [port=50000] [ifaceName] [--log <dir>] [--reliable] [--batch-us <µs>]");
             System.exit(1);
         }
         String id = args[0];
@@ -230,7 +712,7 @@ public class MulticastChatPeer {
         int port = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_PORT;
         String iface = args.length > 3 ? args[3] : "lo0";
 
-        MulticastChatPeer peer = new MulticastChatPeer(id, group, port, iface);
+        MulticastChatPeer peer = new MulticastChatPeer(id, group, port, iface, logDir, reliableChat, batchMicros);
         peer.run();
     }
 }
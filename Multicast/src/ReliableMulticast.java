@@ -0,0 +1,342 @@
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Reliable, per-sender ordered chat over the multicast group, repaired on
+ * request: receivers ask for what they miss, senders do not wait for acks.
+ *
+ * Every message carries the sender's session and sequence number. A sender
+ * keeps its last WINDOW messages to repair from and, while it is quiet,
+ * announces its latest sequence with exponential backoff, so a receiver also
+ * notices a loss at the end of a burst, or of the very first message.
+ *
+ * A receiver delivers each sender's messages in order and keeps what arrives
+ * past a gap. The NAK for a gap is not sent at once but after a random delay;
+ * NAKs go to the whole group, and a receiver that hears someone else's NAK
+ * covering all it misses holds its own back, so one loss seen by the whole
+ * group costs a few NAKs and one repair, not one of each per member. The
+ * repair is multicast too, and a sender does not repeat a message it repaired
+ * moments ago. After MAX_NAKS NAKs without progress the gap is given up and
+ * reported; a gap the sender no longer holds is given up at once.
+ *
+ * A sender that restarts comes back under a new session. The sessions it
+ * left are remembered, so a late repair or SEQ of an old one is ignored
+ * instead of taking the sender back to it.
+ *
+ * Payloads, besides the messages (session and seq go in the binary header):
+ *   NAK  sender;session;first-last,first-last...
+ *   SEQ  session;firstKept;latest
+ */
+public class ReliableMulticast {
+    public interface Transport {
+        void data(long session, long seq, String text);
+
+        void nak(String payload);
+
+        void seq(String payload);
+    }
+
+    public interface Listener {
+        void delivered(String sender, String text);
+
+        /** {@code count} messages from {@code sender} will not arrive. */
+        void lost(String sender, long count);
+    }
+
+    private static final int WINDOW = 1024;
+    private static final int MAX_NAK_RANGES = 16;
+    private static final int MAX_NAKS = 8;
+    // a sender first heard this early is taken from its start: more likely its first messages were lost than just missed by joining
+    private static final long FROM_START_UNTIL = 32;
+    // random delay before a NAK: long enough for reordering, short enough not to be noticed
+    private static final long NAK_DELAY_MIN_MS = 10;
+    private static final long NAK_DELAY_SPREAD_MS = 40;
+    // after a NAK (ours or one we held ours back for), time for the repair to arrive
+    private static final long REPAIR_WAIT_MS = 200;
+    // the NAKs of one loss come within the random delay of each other
+    private static final long REPAIR_HOLDOFF_MS = NAK_DELAY_MIN_MS + NAK_DELAY_SPREAD_MS;
+    private static final long SEQ_MIN_MS = 100;
+    private static final long SEQ_MAX_MS = 5000;
+    // superseded sessions remembered per sender; a sender does not restart that often
+    private static final int OLD_SESSIONS = 8;
+
+    private static final class Source {
+        long session;
+        long expected;
+        long highest;             // highest sequence known to exist
+        final Map<Long, String> ahead = new HashMap<>();
+        long nakAt = Long.MAX_VALUE;
+        int naks;
+        long expectedAtNak;
+        final Deque<Long> oldSessions = new ArrayDeque<>();
+    }
+
+    private final String myId;
+    private final Transport transport;
+    private final Listener listener;
+    private final Random random = new Random();
+    private final long session;
+    private final Map<String, Source> sources = new HashMap<>();
+
+    // send side: the last WINDOW messages by seq % WINDOW
+    private final String[] window = new String[WINDOW];
+    private final long[] repairedAt = new long[WINDOW];
+    private final boolean[] echoed = new boolean[WINDOW];
+    private long nextSeq = 1;
+    // announced from the first tick on, so receivers know the session before its first message
+    private long seqAt = 0;
+    private long seqEvery = SEQ_MIN_MS;
+
+    private long sent, delivered, naksSent, naksHeld, repairs, lost;
+
+    public ReliableMulticast(String myId, Transport transport, Listener listener) {
+        this.myId = myId;
+        this.transport = transport;
+        this.listener = listener;
+        this.session = 1 + random.nextInt(Integer.MAX_VALUE - 1);
+    }
+
+    public synchronized void send(String text, long now) {
+        long seq = nextSeq++;
+        window[(int) (seq % WINDOW)] = text;
+        repairedAt[(int) (seq % WINDOW)] = 0;
+        echoed[(int) (seq % WINDOW)] = false;
+        sent++;
+        seqEvery = SEQ_MIN_MS;
+        seqAt = now + seqEvery;
+        transport.data(session, seq, text);
+    }
+
+    public long session() {
+        return session;
+    }
+
+    /**
+     * True the first time one of our own messages comes back from the group,
+     * false for its repairs and for messages of an earlier session or no
+     * longer kept.
+     */
+    public synchronized boolean firstEcho(long session, long seq) {
+        if (session != this.session || seq < firstKept() || seq >= nextSeq) return false;
+        int i = (int) (seq % WINDOW);
+        if (echoed[i]) return false;
+        echoed[i] = true;
+        return true;
+    }
+
+    public synchronized void onData(String sender, long session, long seq, String text, long now) {
+        if (sender.equals(myId)) return;
+        Source s = sources.get(sender);
+        if (s == null || s.session != session) {
+            if (s != null && s.oldSessions.contains(session)) return;
+            // otherwise a sender is picked up where we first hear it
+            s = newSource(sender, s, session);
+            s.expected = seq <= FROM_START_UNTIL ? 1 : seq;
+            s.highest = seq - 1;
+        }
+        if (seq < s.expected) return;                   // duplicate, or a repair for somebody else
+        s.highest = Math.max(s.highest, seq);
+        if (seq > s.expected) {
+            if (seq - s.expected < WINDOW) s.ahead.putIfAbsent(seq, text);
+            gap(s, now);
+            return;
+        }
+        deliver(sender, s, text);
+        drain(sender, s);
+        if (s.highest >= s.expected) gap(s, now);
+        else s.nakAt = Long.MAX_VALUE;
+    }
+
+    public synchronized void onNak(String from, String payload, long now) {
+        String[] parts = payload.split(";", 3);
+        if (parts.length < 3) return;
+        String sender = parts[0];
+        long nakSession = number(parts[1], 0, parts[1].length());
+        if (nakSession < 0) return;
+        String[] ranges = parts[2].split(",");
+
+        if (sender.equals(myId) && nakSession == session) {
+            repair(ranges, now);
+            return;
+        }
+        // someone else asked for the same: wait for that repair instead of asking again
+        Source s = sources.get(sender);
+        if (from.equals(myId) || s == null || s.session != nakSession || s.nakAt == Long.MAX_VALUE) return;
+        for (long seq = s.expected; seq <= s.highest; seq++) {
+            if (!s.ahead.containsKey(seq) && !covered(ranges, seq)) return;
+        }
+        s.nakAt = Math.max(s.nakAt, now + REPAIR_WAIT_MS);
+        naksHeld++;
+    }
+
+    public synchronized void onSeq(String sender, String payload, long now) {
+        if (sender.equals(myId)) return;
+        String[] parts = payload.split(";");
+        if (parts.length < 3) return;
+        long seqSession = number(parts[0], 0, parts[0].length());
+        long firstKept = number(parts[1], 0, parts[1].length());
+        long latest = number(parts[2], 0, parts[2].length());
+        if (seqSession < 0 || firstKept < 0 || latest < 0) return;
+        Source s = sources.get(sender);
+        if (s == null || s.session != seqSession) {
+            if (s != null && s.oldSessions.contains(seqSession)) return;
+            // nothing missed from a sender we start hearing now
+            s = newSource(sender, s, seqSession);
+            s.expected = latest + 1;
+            s.highest = latest;
+            return;
+        }
+        if (firstKept > s.expected) skipTo(sender, s, firstKept);
+        s.highest = Math.max(s.highest, latest);
+        if (s.highest >= s.expected) gap(s, now);
+    }
+
+    /** Sends due NAKs and announcements; returns when it next has something to do. */
+    public synchronized long tick(long now) {
+        long next = Long.MAX_VALUE;
+        if (now >= seqAt) {
+            transport.seq(session + ";" + firstKept() + ";" + (nextSeq - 1));
+            seqEvery = Math.min(SEQ_MAX_MS, seqEvery * 2);
+            seqAt = now + seqEvery;
+        }
+        next = Math.min(next, seqAt);
+
+        for (Map.Entry<String, Source> e : sources.entrySet()) {
+            Source s = e.getValue();
+            if (now >= s.nakAt) {
+                if (s.expected != s.expectedAtNak) s.naks = 0;
+                if (++s.naks > MAX_NAKS) {
+                    // give up the first gap, keep going with what came after it
+                    long to = s.expected;
+                    while (to <= s.highest && !s.ahead.containsKey(to)) to++;
+                    skipTo(e.getKey(), s, to);
+                    s.naks = 0;
+                    s.nakAt = s.highest >= s.expected ? now + NAK_DELAY_MIN_MS : Long.MAX_VALUE;
+                } else {
+                    sendNak(e.getKey(), s);
+                    s.expectedAtNak = s.expected;
+                    s.nakAt = now + REPAIR_WAIT_MS;
+                }
+            }
+            next = Math.min(next, s.nakAt);
+        }
+        return next;
+    }
+
+    public synchronized void dump() {
+        System.out.printf("Reliable multicast: session %d, %d sent (%d kept), %d delivered, %d NAKs sent, %d held back, %d repairs, %d lost%n",
+                session, sent, nextSeq - firstKept(), delivered, naksSent, naksHeld, repairs, lost);
+        for (Map.Entry<String, Source> e : sources.entrySet()) {
+            Source s = e.getValue();
+            System.out.printf("  from %s: next #%d, latest #%d, %d waiting past a gap%n",
+                    e.getKey(), s.expected, s.highest, s.ahead.size());
+        }
+    }
+
+    // replaces the sender's source, if any, keeping the sessions it has moved past
+    private Source newSource(String sender, Source old, long session) {
+        Source s = new Source();
+        s.session = session;
+        if (old != null) {
+            s.oldSessions.addAll(old.oldSessions);
+            s.oldSessions.addLast(old.session);
+            if (s.oldSessions.size() > OLD_SESSIONS) s.oldSessions.removeFirst();
+        }
+        sources.put(sender, s);
+        return s;
+    }
+
+    private void gap(Source s, long now) {
+        // the delay is drawn once per gap, a NAK already due is not pushed back
+        if (s.nakAt == Long.MAX_VALUE) s.nakAt = now + NAK_DELAY_MIN_MS + random.nextLong(NAK_DELAY_SPREAD_MS);
+    }
+
+    private void deliver(String sender, Source s, String text) {
+        s.expected++;
+        delivered++;
+        listener.delivered(sender, text);
+    }
+
+    private void drain(String sender, Source s) {
+        String next;
+        while ((next = s.ahead.remove(s.expected)) != null) deliver(sender, s, next);
+    }
+
+    private void skipTo(String sender, Source s, long seq) {
+        long n = seq - s.expected;
+        if (n <= 0) return;
+        for (long q = s.expected; q < seq; q++) s.ahead.remove(q);
+        s.expected = seq;
+        lost += n;
+        listener.lost(sender, n);
+        drain(sender, s);
+    }
+
+    private void sendNak(String sender, Source s) {
+        StringBuilder sb = new StringBuilder().append(sender).append(';').append(s.session).append(';');
+        int ranges = 0;
+        long seq = s.expected;
+        while (seq <= s.highest && ranges < MAX_NAK_RANGES) {
+            if (s.ahead.containsKey(seq)) {
+                seq++;
+                continue;
+            }
+            long first = seq;
+            while (seq + 1 <= s.highest && !s.ahead.containsKey(seq + 1)) seq++;
+            if (ranges++ > 0) sb.append(',');
+            sb.append(first).append('-').append(seq);
+            seq++;
+        }
+        transport.nak(sb.toString());
+        naksSent++;
+    }
+
+    private void repair(String[] ranges, long now) {
+        long base = firstKept();
+        boolean gone = false;
+        for (String r : ranges) {
+            int dash = r.indexOf('-');
+            if (dash < 0) continue;
+            long first = number(r, 0, dash);
+            long last = Math.min(number(r, dash + 1, r.length()), nextSeq - 1);
+            if (first < 0 || last < 0) continue;
+            if (first < base) gone = true;
+            for (long seq = Math.max(first, base); seq <= last; seq++) {
+                int i = (int) (seq % WINDOW);
+                // several NAKs for one loss
+                if (now - repairedAt[i] < REPAIR_HOLDOFF_MS) continue;
+                repairedAt[i] = now;
+                transport.data(session, seq, window[i]);
+                repairs++;
+            }
+        }
+        // tell them what is no longer kept, so they stop asking
+        if (gone) transport.seq(session + ";" + base + ";" + (nextSeq - 1));
+    }
+
+    private long firstKept() {
+        return Math.max(1, nextSeq - WINDOW);
+    }
+
+    private static boolean covered(String[] ranges, long seq) {
+        for (String r : ranges) {
+            int dash = r.indexOf('-');
+            if (dash < 0) continue;
+            long first = number(r, 0, dash);
+            if (first >= 0 && seq >= first && seq <= number(r, dash + 1, r.length())) return true;
+        }
+        return false;
+    }
+
+    // the number in s[from, to), -1 if there is none: a malformed NAK or SEQ is skipped, not thrown on
+    private static long number(String s, int from, int to) {
+        try {
+            return Math.max(-1, Long.parseLong(s, from, to, 10));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Checks of the batch encoding, run with {@code java ChatCodecTest} against
+ * the compiled sources; exits with 1 on the first failure.
+ */
+public class ChatCodecTest {
+    private static final int LIMIT = 1400;
+
+    public static void main(String[] args) throws Exception {
+        batchFilledToTheLastBytes();
+        System.out.println("ChatCodecTest: ok");
+    }
+
+    // every way a batch can end near its limit, one byte at a time: a message that does not fit is refused, never thrown on
+    private static void batchFilledToTheLastBytes() throws Exception {
+        ChatCodec codec = new ChatCodec("peer");
+        for (int first = LIMIT - 40; first < LIMIT; first++) {
+            String big = "b".repeat(first - 16);
+            check(codec.addToBatch(MulticastChatPeer.Type.CHAT, 1, 0, 0, big, LIMIT), "first message of " + first + " fits");
+            int added = 1;
+            while (codec.addToBatch(MulticastChatPeer.Type.CHAT, 1, 0, 0, "x", LIMIT)) added++;
+            // the refused message left nothing behind
+            check(!codec.addToBatch(MulticastChatPeer.Type.RCHAT, 1, 7, 9, "xyz", LIMIT), "full batch refuses more");
+            check(codec.batched() == added, "batched " + codec.batched() + " != " + added);
+
+            ByteBuffer b = codec.takeBatch();
+            check(b.limit() <= LIMIT, "batch of " + b.limit() + " bytes past the limit");
+            byte[] data = Arrays.copyOf(b.array(), b.limit());
+            MulticastChatPeer.Msg m = new MulticastChatPeer.Msg();
+            check(codec.decode(data, 0, data.length, m), "batch decodes");
+            check(m.sender.equals("peer") && m.payload().equals(big), "first message intact");
+            int read = 1;
+            while (codec.next(m)) {
+                check(m.type == MulticastChatPeer.Type.CHAT && m.payload().equals("x"), "message " + read + " intact");
+                read++;
+            }
+            check(read == added, "read " + read + " of " + added + " messages in a batch of " + data.length + " bytes");
+        }
+    }
+
+    private static void check(boolean ok, String what) {
+        if (ok) return;
+        System.err.println("ChatCodecTest failed: " + what);
+        System.exit(1);
+    }
+}